@@ -0,0 +1,136 @@
+package app.serialsound;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+class BaudDetector {
+
+    /*
+    finds the baud rate a device talks at by listening to it for a short while at each candidate rate
+    a sample scores high if it looks like commands: printable text, regular delimiters, ideally known commands
+    at a wrong rate the same bytes come out as binary noise, or nothing at all
+    slow rates need a long window to see whole lines, so the fast rates are tried first
+    a device using flow control is resumed at each rate, e.g. it may still be held back by an earlier session
+    */
+
+    interface Port {
+        void setBaudRate(int baudRate) throws IOException;
+        int read(byte[] dest, int timeoutMillis) throws IOException;
+    }
+
+    static final int defaultSampleMillis = 150;     // shortest window, slow rates get long enough for two lines
+    static final int defaultBudgetMillis = 5000;    // a round over all the usual rates fits, even if all are quiet
+    static final int typicalCommandLength = 32;     // e.g. "button 12 released\r\n" with some room
+    static final int confidentScore = 20;       // e.g. two known commands, stop looking further
+    static final int noiseScore = -20;          // e.g. ten bytes of binary, surely the wrong rate
+    static final int flowCapacity = 8;          // credits granted at each rate, enough lines to be confident
+
+    private final Port port;
+    private final FlowControl flowControl;
+    private final Set<String> knownCommands;
+    private final int sampleMillis;
+    private final int budgetMillis;
+    private final byte[] readBuffer;
+    private final byte[] sample;
+    private int bestBaudRate;
+    private int bestScore;
+
+    BaudDetector(Port port, Set<String> knownCommands, int sampleMillis, int budgetMillis) {
+        this(port, knownCommands, sampleMillis, budgetMillis, FlowControl.none());
+    }
+
+    BaudDetector(Port port, Set<String> knownCommands, int sampleMillis, int budgetMillis, FlowControl flowControl) {
+        this.port = port;
+        this.flowControl = flowControl;
+        this.knownCommands = knownCommands;
+        this.sampleMillis = sampleMillis;
+        this.budgetMillis = budgetMillis;
+        readBuffer = new byte[4096];
+        sample = new byte[4096];
+    }
+
+    int getBestScore() {
+        return bestScore;
+    }
+
+    // returns the best scoring rate, or 0 if nothing looked like commands at any rate
+    // the preferred rate (e.g. the one last detected for this device) is tried first
+    int detect(int[] baudRates, int preferred) throws IOException {
+        bestBaudRate = 0;
+        bestScore = 0;
+        long deadline = System.nanoTime() + budgetMillis * 1000000L;
+        if(preferred > 0 && tryBaudRate(preferred, deadline)) return bestBaudRate;
+        int[] fastestFirst = baudRates.clone();
+        Arrays.sort(fastestFirst);
+        while(System.nanoTime() < deadline) {
+            for(int i=fastestFirst.length-1; i>=0; --i) {
+                int baudRate = fastestFirst[i];
+                if(System.nanoTime() >= deadline) break;
+                if(baudRate == preferred) continue;
+                if(tryBaudRate(baudRate, deadline)) return bestBaudRate;
+            }
+            if(bestScore > 0) break;    // one full round is enough once something was heard
+        }
+        return bestBaudRate;
+    }
+
+    // long enough to receive two typical lines at this rate, 10 bits per byte
+    int sampleMillis(int baudRate) {
+        long lineMillis = (typicalCommandLength + 1) * 10 * 1000L / baudRate;
+        return (int) Math.min(budgetMillis, Math.max(sampleMillis, 2 * lineMillis));
+    }
+
+    // returns true if the rate is good enough to stop looking
+    private boolean tryBaudRate(int baudRate, long deadline) throws IOException {
+        port.setBaudRate(baudRate);
+        flowControl.start();        // at a wrong rate the device cannot understand it, no harm done
+        long windowEnd = Math.min(deadline, System.nanoTime() + sampleMillis(baudRate) * 1000000L);
+        int length = 0;
+        int score = 0;
+        while(length < sample.length) {
+            long remaining = (windowEnd - System.nanoTime()) / 1000000L;
+            if(remaining <= 0) break;
+            int n = port.read(readBuffer, (int) remaining);
+            if(n <= 0) continue;
+            n = Math.min(n, sample.length - length);
+            System.arraycopy(readBuffer, 0, sample, length, n);
+            length += n;
+            score = score(sample, length, knownCommands);
+            if(score >= confidentScore || score <= noiseScore) break;
+        }
+        if(score > bestScore) {
+            bestScore = score;
+            bestBaudRate = baudRate;
+        }
+        return score >= confidentScore;
+    }
+
+    static int score(byte[] data, int length, Set<String> knownCommands) {
+        int score = 0;
+        int lineStart = 0;
+        boolean lineValid = true;
+        for(int i=0; i<length; ++i) {
+            int b = data[i] & 0xff;
+            if(b == '\n') {
+                String line = new String(data, lineStart, i - lineStart).trim();
+                if(!line.isEmpty()) {
+                    if(knownCommands.contains(line)) {
+                        score += 10;
+                    } else if(lineValid) {
+                        score += 3;
+                    }
+                }
+                lineStart = i + 1;
+                lineValid = true;
+            } else if(b < 0x20 && b != '\r' && b != '\t' || b > 0x7e) {
+                score -= 2;
+                lineValid = false;
+            }
+        }
+        if(length - lineStart > SerialReceiver.maxCommandLength) {
+            score -= 10;    // no delimiter for way too long
+        }
+        return score;
+    }
+}
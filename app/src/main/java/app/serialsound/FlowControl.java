@@ -0,0 +1,135 @@
+package app.serialsound;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+class FlowControl {
+
+    /*
+    tells the device to hold back commands while the ui thread is behind
+    "pending" is the number of commands received but not yet handled, i.e. the fill level of the ingest queue
+    in credit mode the device may only send as many lines as it was granted with "credit <n>" lines,
+    in the other modes it is paused above the high watermark and resumed below the low watermark
+    while held back the device sends nothing, so the link must not wait for a read to get XON or a grant out
+    */
+
+    interface Link {
+        void write(byte[] data);
+        void setRts(boolean value) throws IOException;
+    }
+
+    static final int MODE_NONE = 0;
+    static final int MODE_RTS_CTS = 1;
+    static final int MODE_XON_XOFF = 2;
+    static final int MODE_CREDIT = 3;
+    static final String[] modeNames = new String[] {"None", "RTS/CTS", "XON/XOFF", "Credit"};
+
+    static final byte XON = 0x11;
+    static final byte XOFF = 0x13;
+    static final int defaultCapacity = 64;
+
+    private final Link link;
+    private final int mode;
+    private final int capacity;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final int minGrant;
+    private int pending;
+    private int outstanding;                    // credits granted but not yet used up by the device
+    private boolean paused;
+
+    FlowControl(Link link, int mode, int capacity) {
+        this.link = link;
+        this.mode = mode;
+        this.capacity = capacity;
+        highWatermark = capacity * 3 / 4;
+        lowWatermark = capacity / 4;
+        minGrant = Math.max(1, capacity / 4);
+        pending = 0;
+        outstanding = 0;
+        paused = false;
+    }
+
+    static FlowControl none() {
+        return new FlowControl(null, MODE_NONE, defaultCapacity);
+    }
+
+    synchronized int getPending() {
+        return pending;
+    }
+
+    synchronized boolean isPaused() {
+        return paused;
+    }
+
+    synchronized void start() {
+        pending = 0;
+        outstanding = 0;
+        paused = false;
+        switch(mode) {
+            case MODE_RTS_CTS:
+                setRts(true);
+                break;
+            case MODE_XON_XOFF:
+                link.write(new byte[] {XON});
+                break;
+            case MODE_CREDIT:
+                grantCredits();
+                break;
+        }
+    }
+
+    // a line arrived from the device, called on the reader thread
+    synchronized void onReceived() {
+        ++pending;
+        if(outstanding > 0) --outstanding;
+        if(!paused && pending >= highWatermark) {
+            switch(mode) {
+                case MODE_RTS_CTS:
+                    paused = true;
+                    setRts(false);
+                    break;
+                case MODE_XON_XOFF:
+                    paused = true;
+                    link.write(new byte[] {XOFF});
+                    break;
+            }
+        }
+    }
+
+    // a line was handled or discarded
+    synchronized void onConsumed() {
+        if(pending > 0) --pending;
+        if(paused && pending <= lowWatermark) {
+            switch(mode) {
+                case MODE_RTS_CTS:
+                    paused = false;
+                    setRts(true);
+                    break;
+                case MODE_XON_XOFF:
+                    paused = false;
+                    link.write(new byte[] {XON});
+                    break;
+            }
+        }
+        if(mode == MODE_CREDIT) {
+            grantCredits();
+        }
+    }
+
+    private void grantCredits() {
+        int free = capacity - pending - outstanding;
+        if(free < minGrant) return;
+        outstanding += free;
+        link.write(("credit " + free + "\n").getBytes());
+    }
+
+    private void setRts(boolean value) {
+        try {
+            link.setRts(value);
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.w("flow", "cannot set RTS: " + e);
+        }
+    }
+}
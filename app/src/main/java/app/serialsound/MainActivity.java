@@ -20,11 +20,14 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.LinearLayout;
@@ -46,16 +49,19 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
-public class MainActivity extends AppCompatActivity implements SerialInputOutputManager.Listener {
+public class MainActivity extends AppCompatActivity implements SerialReceiver.Callback {
 
     /*
     language used:
@@ -64,17 +70,8 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
     "note" is a midi note number, e.g. 60 = middle C = "C4"
     */
 
-    private Map<String, String> mapping;        // e.g. "button 1 pressed" to midi note 60 (presses only)
-    private Map<String, String> pair;           // e.g. "button 1 pressed" to "button 1 released" and vice versa
-    private Map<String, Boolean> pressed;       // e.g. "button 1 pressed" to current state of button 1 (presses only)
-    private Map<String, Integer> playing;       // e.g. "button 1 pressed" currently responsible for midi note 61
-                                                    // because sharp modifier was held down while pressing it
-    private Map<Integer, Set<String>> owners;   // e.g. midi note 61 should be stopped if buttons 1 & 2 are both
-                                                    // released, as button 1 also plays midi node 61 right now
-    private Set<Integer> sustained;             // unowned notes playing only because of sustain
-    private Set<String> sustainers;             // sustain should last until these buttons are released
-    private int offset;                         // modifier to be added to newly played notes
-                                                    // e.g. sharp = 1, flat = -1, octave up = 12, down = -12
+    private NoteEngine engine;
+    private NoteEngine.Snapshot snapshot;       // what the synth is sent again on resume
 
     private String internalPress;               // when not in learning mode, software buttons also simulate
     private String internalRelease;                 // serial commands; these are the prefixes they use
@@ -83,49 +80,73 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
     private List<String> usbPorts;
     private Map<String, UsbSerialPort> usbPortMap;
     private final String[] baudList = new String[] {
-            "300", "1200", "2400", "4800", "9600", "19200", "38400", "57600", "74880",
+            "Auto", "300", "1200", "2400", "4800", "9600", "19200", "38400", "57600", "74880",
             "115200", "230400", "250000", "500000", "1000000", "2000000"
     };
     private int baudRate;
+    private int flowMode;
+    private int velocityPreset;
     private boolean connected;
     private UsbSerialPort port;
     private SerialInputOutputManager usbIoManager;
+    private SerialReceiver serialReceiver;
+    private FlowControl flowControl;
+    private ExecutorService flowWriter;         // writes flow control bytes, the reader may be blocked meanwhile
 
     private MidiDriver midiDriver;
+    private Handler handler;                    // delayed work on the ui thread
+    private Runnable controlFlush;
+    private boolean controlFlushPending;
+    private Runnable statusUpdate;
+    private String statusCommand;               // the last command received, shown at the next status update
     private BroadcastReceiver broadcastReceiver;
 
     private AppCompatButton learningButton;
     private int learningState;
     private ColorStateList restoreColor;
     private String pressString;
-    private boolean mappingUnsaved;
+    private String contactString;
+    private long contactTimestamp;
 
     static final String INTENT_ACTION_GRANT_USB = BuildConfig.APPLICATION_ID + ".GRANT_USB";
     static final int defaultBaudRate = 9600;
+    static final int autoBaudRate = 0;
+    static final int flowWriteTimeoutMillis = 200;
+    static final int controlFlushMillis = 10;
+    static final int statusUpdateMillis = 100;
 
     private void initData() {
-        mapping = new HashMap<>();
-        pair = new HashMap<>();
-        pressed = new HashMap<>();
-        playing = new HashMap<>();
-        owners = new HashMap<>();
-        sustained = new LinkedHashSet<>();
-        sustainers = new LinkedHashSet<>();
-        offset = 0;
+        engine = new NoteEngine(midiDriver::write);
+        snapshot = new NoteEngine.Snapshot();
         internalPress = "@press@";
         internalRelease = "@release@";
         baudRate = defaultBaudRate;
+        flowMode = FlowControl.MODE_NONE;
+        velocityPreset = 0;
         connected = false;
         port = null;
         learningButton = null;
         learningState = 0;
         restoreColor = null;
         pressString = null;
-        mappingUnsaved = false;
+        contactString = null;
+        contactTimestamp = 0;
     }
 
     private void initMidi() {
         midiDriver = new MidiDriver();
+        handler = new Handler(Looper.getMainLooper());
+        controlFlush = () -> {
+            controlFlushPending = false;
+            engine.flushControls();
+        };
+        controlFlushPending = false;
+        statusUpdate = () -> {
+            TextView statusText = findViewById(R.id.StatusText);
+            statusText.setText(String.format("Received \"%s\"", statusCommand));
+            statusCommand = null;
+        };
+        statusCommand = null;
     }
 
     private void startMidi() {
@@ -137,150 +158,25 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
         midiDriver.stop();
     }
 
-    private void midiNoteOff(int note) {
-        byte[] event = new byte[3];
-        event[0] = (byte) 0x80;
-        event[1] = (byte) note;
-        midiDriver.write(event);
-    }
-
-    private void midiNoteOn(int note) {
-        byte[] event = new byte[3];
-        event[0] = (byte) 0x90;
-        event[1] = (byte) note;
-        event[2] = (byte) 0x7f;  // velocity
-        midiDriver.write(event);
-    }
-
-    private void debugOffset() {
-        Log.d("offset", String.valueOf(offset));
-    }
-
-    private void handlePress(String command) {
-        if(pressed.containsKey(command)) {
-            Boolean isPressed = pressed.get(command);
-            if(isPressed != null && isPressed) return;
-        }
-        if(!mapping.containsKey(command)) return;
-        String tag = mapping.get(command);
-        if(tag == null) return;
-        pressed.put(command, true);
-        if(tag.matches("\\d+")) {
-            int note = Integer.parseInt(tag) + offset;
-            playing.put(command, note);
-            Set<String> noteOwners = owners.get(note);
-            if(noteOwners == null) {
-                noteOwners = new LinkedHashSet<>();
-                owners.put(note, noteOwners);
-            }
-            if(noteOwners.isEmpty()) {
-                midiNoteOn(note);
-            }
-            noteOwners.add(command);
-        }
-        else if(tag.equals("sharp")) {
-            ++offset;
-            debugOffset();
-        }
-        else if(tag.equals("flat")) {
-            --offset;
-            debugOffset();
-        }
-        else if(tag.equals("up")) {
-            offset += 12;
-            debugOffset();
-        }
-        else if((tag.equals("down"))) {
-            offset -= 12;
-            debugOffset();
-        }
-        else if((tag.equals("sustain"))) {
-            sustainers.add(command);
-        }
-    }
-
-    private void handleRelease(String command) {
-        // the argument is already the press command corresponding to the release
-        if(!pressed.containsKey(command)) return;
-        Boolean isPressed = pressed.get(command);
-        if(isPressed == null || !isPressed) return;
-        if(!mapping.containsKey(command)) return;
-        String tag = mapping.get(command);
-        if(tag == null) return;
-        pressed.put(command, false);
-        if(tag.matches("\\d+")) {
-            if(!playing.containsKey(command)) return;
-            Integer noteInt = playing.get(command);
-            if(noteInt == null) return;
-            int note = noteInt;
-            playing.remove(command);
-            Set<String> noteOwners = owners.get(note);
-            if(noteOwners == null) return;
-            noteOwners.remove(command);
-            if(noteOwners.isEmpty()) {
-                handleOrphanedNote(note);
-            }
-        }
-        else if(tag.equals("sharp")) {
-            --offset;
-            debugOffset();
-        }
-        else if(tag.equals("flat")) {
-            ++offset;
-            debugOffset();
-        }
-        else if(tag.equals("up")) {
-            offset -= 12;
-            debugOffset();
-        }
-        else if(tag.equals("down")) {
-            offset += 12;
-            debugOffset();
-        }
-        else if(tag.equals("sustain")) {
-            sustainers.remove(command);
-            if(sustainers.isEmpty()) {
-                handleStopSustain();
-            }
-        }
-    }
-
-    private void handleOrphanedNote(int note) {
-        if(sustainers.isEmpty()) {
-            midiNoteOff(note);
-        } else {
-            sustained.add(note);
-        }
-    }
-
-    private void handleStopSustain() {
-        for(Integer noteInt: sustained) {
-            int note = noteInt;
-            midiNoteOff(note);
-        }
-        sustained.clear();
-    }
-
-    private void handleCommand(String command) {
-        Log.d("command", command);
-        if(mapping.containsKey(command)) {
-            handlePress(command);
-        } else {
-            if(pair.containsKey(command)) {
-                String pressCommand = pair.get(command);
-                handleRelease(pressCommand);
-            }
-        }
+    private void restoreSnapshot() {
+        // commands keep coming in while paused and the engine keeps track, so it is captured only now
+        long start = System.nanoTime();
+        engine.capture(snapshot);
+        engine.setMidiEnabled(true);
+        engine.replay(snapshot);
+        long micros = (System.nanoTime() - start) / 1000;
+        Log.d("snapshot", String.format(Locale.ROOT, "restored %d notes in %d us", snapshot.noteCount, micros));
     }
 
     private void stopUnfinishedLearning() {
         if(learningState == 2) {
-            handleRelease(pressString);
-            unregisterCommand(pressString, false);
+            engine.handleRelease(pressString);
+            engine.unregisterCommand(pressString, false);
         }
         ViewCompat.setBackgroundTintList(learningButton, restoreColor);
         learningState = 0;
         learningButton = null;
+        contactString = null;
     }
 
     private void handleInternalButton(View v, boolean newState) {
@@ -297,114 +193,98 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
                 int clr = ContextCompat.getColor(this, R.color.colorWaitingPress);
                 ViewCompat.setBackgroundTintList(btn, ColorStateList.valueOf(clr));
             }
-            handleCommand(internalPress + tag);
+            engine.handleCommand(internalPress + tag);
         } else {
-            handleCommand(internalRelease + tag);
+            engine.handleCommand(internalRelease + tag);
         }
     }
 
-    private void processSerialCommand(String cmd) {
-        TextView statusText = findViewById(R.id.StatusText);
-        statusText.setText(String.format("Received \"%s\"", cmd));
+    // contactCmd is the first contact of a dual contact key or null
+    private void learnPressCommand(String cmd, String contactCmd, long timestamp) {
+        engine.registerPressCommand(cmd, (String) learningButton.getTag());
+        if(contactCmd != null) {
+            // before the note is played, so that it already gets the velocity of this very keystroke
+            engine.registerContact(contactCmd, cmd);
+            engine.handleCommand(contactCmd, contactTimestamp);
+        }
+        pressString = cmd;
+        int clr = ContextCompat.getColor(this, R.color.colorWaitingRelease);
+        ViewCompat.setBackgroundTintList(learningButton, ColorStateList.valueOf(clr));
+        learningState = 2;
+        engine.handleCommand(cmd, timestamp);
+    }
+
+    // controller samples are coalesced, the latest values go out a little later in one go
+    private void scheduleControlFlush() {
+        if(controlFlushPending || !engine.hasPendingControls()) return;
+        controlFlushPending = true;
+        handler.postDelayed(controlFlush, controlFlushMillis);
+    }
+
+    // the status line is a relayout and some garbage, so it shows the latest command only a few times per second
+    private void showReceived(String cmd) {
+        if(statusCommand == null) handler.postDelayed(statusUpdate, statusUpdateMillis);
+        statusCommand = cmd;
+    }
+
+    private void processSerialCommand(String cmd, long timestamp) {
+        if(engine.isControlSample(cmd)) {
+            // learned knobs send hundreds of samples per second, too many to show,
+            // and they keep coming while another button is learned, so they must not be taken for it
+            engine.handleCommand(cmd, timestamp);
+            scheduleControlFlush();
+            return;
+        }
+        showReceived(cmd);
         switch(learningState) {
             case 1:
-                registerPressCommand(cmd, (String) learningButton.getTag());
-                pressString = cmd;
-                int clr = ContextCompat.getColor(this, R.color.colorWaitingRelease);
-                ViewCompat.setBackgroundTintList(learningButton, ColorStateList.valueOf(clr));
-                learningState = 2;
-                handleCommand(cmd);
+                if(NoteEngine.controlIndex((String) learningButton.getTag()) >= 0) {
+                    // controllers are learned from a single command carrying a value, e.g. "pot 1 512"
+                    if(engine.registerControl(cmd, (String) learningButton.getTag())) {
+                        ViewCompat.setBackgroundTintList(learningButton, restoreColor);
+                        learningState = 0;
+                        learningButton = null;
+                        restoreColor = null;
+                        engine.handleCommand(cmd, timestamp);
+                    }
+                    break;
+                }
+                CheckBox velocityCheckbox = findViewById(R.id.VelocityCheckbox);
+                if(velocityCheckbox.isChecked()) {
+                    // dual contact keys report their first contact before the press, e.g. "key 1 touched"
+                    contactString = cmd;
+                    contactTimestamp = timestamp;
+                    learningState = 3;
+                    break;
+                }
+                learnPressCommand(cmd, null, timestamp);
+                break;
+            case 3:
+                if(!cmd.equals(contactString)) {
+                    learnPressCommand(cmd, contactString, timestamp);
+                    contactString = null;
+                }
                 break;
             case 2:
                 if(!cmd.equals(pressString)) {
-                    registerReleaseCommand(cmd, pressString);
+                    engine.registerReleaseCommand(cmd, pressString);
                     ViewCompat.setBackgroundTintList(learningButton, restoreColor);
                     learningState = 0;
                     learningButton = null;
                     restoreColor = null;
                     pressString = null;
-                    handleCommand(cmd);
+                    engine.handleCommand(cmd, timestamp);
                 }
                 break;
             default:
-                handleCommand(cmd);
-        }
-    }
-
-    private void processSerialData(byte[] data) {
-        String s = new String(data);
-        for(String line : s.split("\n")) {
-            String cmd = line.trim();
-            if(!cmd.isEmpty()) {
-                processSerialCommand(cmd);
-            }
-        }
-    }
-
-    private void unregisterCommand(String command, boolean considerPair) {
-        mappingUnsaved = true;
-        if(considerPair && pair.containsKey(command)) {
-            unregisterCommand(pair.get(command), false);
-        }
-        if(mapping.containsKey(command)) {
-            if(pressed.containsKey(command)) {
-                Boolean isPressed = pressed.get(command);
-                if(isPressed != null && isPressed) {
-                    handleRelease(command);
-                    pressed.remove(command);
-                }
-            }
-            mapping.remove(command);
-        }
-        pair.remove(command);
-        if(playing.containsKey(command)) {
-            Integer noteInt = playing.get(command);
-            if(noteInt != null) {
-                int note = noteInt;
-                if(owners.containsKey(noteInt)) {
-                    Set<String> noteOwners = owners.get(noteInt);
-                    if (noteOwners != null) {
-                        noteOwners.remove(command);
-                        if (noteOwners.isEmpty()) {
-                            handleOrphanedNote(note);
-                        }
-                    }
-                }
-            }
+                engine.handleCommand(cmd, timestamp);
         }
-        playing.remove(command);
-        if(sustainers.contains(command)) {
-            sustainers.remove(command);
-            if(sustainers.isEmpty()) {
-                handleStopSustain();
-            }
-        }
-    }
-
-    private void registerPressCommand(String cmd, String tag) {
-        unregisterCommand(cmd, true);
-        mapping.put(cmd, tag);
-        pressed.put(cmd, false);
-        playing.remove(cmd);
-    }
-
-    private void registerReleaseCommand(String cmd, String pressCmd) {
-        unregisterCommand(cmd, true);
-        mapping.remove(cmd);     // these removes are superfluous, but let's be extra careful
-        pair.put(pressCmd, cmd);
-        pair.put(cmd, pressCmd);
-        pressed.remove(cmd);
-        playing.remove(cmd);
-    }
-
-    private void registerCommandPair(String pressCmd, String releaseCmd, String tag) {
-        registerPressCommand(pressCmd, tag);
-        registerReleaseCommand(releaseCmd, pressCmd);
+        scheduleControlFlush();
     }
 
     @SuppressLint("ClickableViewAccessibility")
     private void registerInternalButton(AppCompatButton btn, String tag) {
-        registerCommandPair(internalPress + tag, internalRelease + tag, tag);
+        engine.registerCommandPair(internalPress + tag, internalRelease + tag, tag);
         btn.setOnTouchListener((v, event) -> {
             int action = event.getAction();
             if(action == MotionEvent.ACTION_DOWN) {
@@ -465,6 +345,14 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
                 usbIoManager.stop();
                 usbIoManager = null;
             }
+            serialReceiver = null;
+            flowControl = null;
+            if(flowWriter != null) {
+                flowWriter.shutdown();
+                flowWriter = null;
+            }
+            handler.removeCallbacks(statusUpdate);
+            statusCommand = null;
         } catch (IOException e) {
             Toast.makeText(this, "Serial communication error", Toast.LENGTH_SHORT).show();
             return;
@@ -474,6 +362,8 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
         statusText.setText(R.string.status_disconnected);
         Spinner baudSpinner = findViewById(R.id.BaudSpinner);
         baudSpinner.setEnabled(true);
+        Spinner flowSpinner = findViewById(R.id.FlowSpinner);
+        flowSpinner.setEnabled(true);
         AppCompatButton refreshButton = findViewById(R.id.RefreshButton);
         refreshButton.setEnabled(true);
         AppCompatButton connectButton = findViewById(R.id.ConnectButton);
@@ -495,13 +385,73 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
         spe.apply();
     }
 
+    private void loadFlowMode() {
+        SharedPreferences sp = getPreferences(MODE_PRIVATE);
+        flowMode = sp.getInt("flowcontrol", FlowControl.MODE_NONE);
+    }
+
+    private void saveFlowMode() {
+        SharedPreferences sp = getPreferences(MODE_PRIVATE);
+        int savedFlowMode = sp.getInt("flowcontrol", FlowControl.MODE_NONE);
+        if(savedFlowMode == flowMode) return;
+        SharedPreferences.Editor spe = sp.edit();
+        spe.putInt("flowcontrol", flowMode);
+        spe.apply();
+    }
+
+    // not SerialInputOutputManager.writeAsync, it only writes after a read returned, i.e. never to a held back device
+    private void loadVelocityPreset() {
+        SharedPreferences sp = getPreferences(MODE_PRIVATE);
+        velocityPreset = sp.getInt("velocitycurve", 0);
+        if(!engine.setVelocityPreset(velocityPreset)) velocityPreset = 0;
+    }
+
+    private void saveVelocityPreset() {
+        SharedPreferences sp = getPreferences(MODE_PRIVATE);
+        int savedVelocityPreset = sp.getInt("velocitycurve", 0);
+        if(savedVelocityPreset == velocityPreset) return;
+        SharedPreferences.Editor spe = sp.edit();
+        spe.putInt("velocitycurve", velocityPreset);
+        spe.apply();
+    }
+
+    private FlowControl createFlowControl(final UsbSerialPort serialPort, final Executor writer, int capacity) {
+        FlowControl.Link link = new FlowControl.Link() {
+            @Override
+            public void write(byte[] data) {
+                // called on the reader thread and the ui thread
+                try {
+                    writer.execute(() -> {
+                        try {
+                            serialPort.write(data, flowWriteTimeoutMillis);
+                        } catch (IOException e) {
+                            Log.w("flow", "cannot write: " + e);
+                        }
+                    });
+                } catch (RejectedExecutionException ignored) {
+                    // disconnected meanwhile
+                }
+            }
+
+            @Override
+            public void setRts(boolean value) throws IOException {
+                serialPort.setRTS(value);
+            }
+        };
+        return new FlowControl(link, flowMode, capacity);
+    }
+
     private void connectToDevice(Boolean askForPermission) {
         if(connected) return;
         Spinner deviceSpinner = findViewById(R.id.DeviceSpinner);
         String portName = (String) deviceSpinner.getSelectedItem();
         Spinner baudSpinner = findViewById(R.id.BaudSpinner);
-        baudRate = Integer.parseInt((String) baudSpinner.getSelectedItem());
+        String baudStr = (String) baudSpinner.getSelectedItem();
+        baudRate = baudStr.equals(baudList[0]) ? autoBaudRate : Integer.parseInt(baudStr);
         saveBaudRate();
+        Spinner flowSpinner = findViewById(R.id.FlowSpinner);
+        flowMode = flowSpinner.getSelectedItemPosition();
+        saveFlowMode();
         port = usbPortMap.get(portName);
         if(port == null) return;
         UsbDevice dev = port.getDevice();
@@ -528,9 +478,26 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
 
         try {
             port.open(connection);
-            port.setParameters(baudRate, UsbSerialPort.DATABITS_8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
-            usbIoManager = new SerialInputOutputManager(port, this);
+        } catch (IOException e) {
+            Toast.makeText(this, "Serial communication error", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if(baudRate == autoBaudRate) {
+            detectBaudRate();
+        } else {
+            startCommunication(baudRate);
+        }
+    }
+
+    private void startCommunication(int rate) {
+        try {
+            port.setParameters(rate, UsbSerialPort.DATABITS_8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+            flowWriter = Executors.newSingleThreadExecutor();
+            flowControl = createFlowControl(port, flowWriter, FlowControl.defaultCapacity);
+            serialReceiver = new SerialReceiver(this::runOnUiThread, this, flowControl);
+            usbIoManager = new SerialInputOutputManager(port, serialReceiver);
             Executors.newSingleThreadExecutor().submit(usbIoManager);
+            flowControl.start();
         } catch (IOException e) {
             Toast.makeText(this, "Serial communication error", Toast.LENGTH_SHORT).show();
             return;
@@ -538,24 +505,116 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
         connected = true;
         TextView statusText = findViewById(R.id.StatusText);
         statusText.setText(R.string.status_connected);
+        Spinner deviceSpinner = findViewById(R.id.DeviceSpinner);
         deviceSpinner.setEnabled(false);
+        Spinner baudSpinner = findViewById(R.id.BaudSpinner);
         baudSpinner.setEnabled(false);
+        Spinner flowSpinner = findViewById(R.id.FlowSpinner);
+        flowSpinner.setEnabled(false);
         AppCompatButton refreshButton = findViewById(R.id.RefreshButton);
         refreshButton.setEnabled(false);
         AppCompatButton connectButton = findViewById(R.id.ConnectButton);
         connectButton.setText(R.string.button_disconnect);
     }
 
+    private String deviceKey(UsbSerialPort p) {
+        UsbDevice dev = p.getDevice();
+        return String.format(Locale.ROOT, "%04x:%04x/%d", dev.getVendorId(), dev.getProductId(), p.getPortNumber());
+    }
+
+    private void detectBaudRate() {
+        final UsbSerialPort serialPort = port;
+        final String cacheKey = "baudrate:" + deviceKey(serialPort);
+        SharedPreferences sp = getPreferences(MODE_PRIVATE);
+        final int cachedBaudRate = sp.getInt(cacheKey, 0);
+        Set<String> knownCommands = new HashSet<>(engine.getMapping().keySet());
+        knownCommands.addAll(engine.getPair().keySet());
+        int[] candidates = new int[baudList.length - 1];
+        for(int i=1; i<baudList.length; ++i) {
+            candidates[i-1] = Integer.parseInt(baudList[i]);
+        }
+        BaudDetector.Port detectorPort = new BaudDetector.Port() {
+            @Override
+            public void setBaudRate(int rate) throws IOException {
+                serialPort.setParameters(rate, UsbSerialPort.DATABITS_8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+            }
+
+            @Override
+            public int read(byte[] dest, int timeoutMillis) throws IOException {
+                return serialPort.read(dest, timeoutMillis);
+            }
+        };
+        // written right away on the detection thread, a device held back would not be heard at all
+        FlowControl detectionFlow = createFlowControl(serialPort, Runnable::run, BaudDetector.flowCapacity);
+        BaudDetector detector = new BaudDetector(detectorPort, knownCommands,
+                BaudDetector.defaultSampleMillis, BaudDetector.defaultBudgetMillis, detectionFlow);
+        TextView statusText = findViewById(R.id.StatusText);
+        statusText.setText(R.string.status_detecting);
+        AppCompatButton refreshButton = findViewById(R.id.RefreshButton);
+        refreshButton.setEnabled(false);
+        AppCompatButton connectButton = findViewById(R.id.ConnectButton);
+        connectButton.setEnabled(false);
+        Executors.newSingleThreadExecutor().submit(() -> {
+            int detected;
+            long start = System.nanoTime();
+            try {
+                detected = detector.detect(candidates, cachedBaudRate);
+            } catch (IOException e) {
+                detected = -1;
+            }
+            Log.d("baud", String.format(Locale.ROOT, "detected %d (score %d) in %d ms", detected,
+                    detector.getBestScore(), (System.nanoTime() - start) / 1000000));
+            final int result = detected;
+            runOnUiThread(() -> finishBaudDetection(result, cacheKey, cachedBaudRate));
+        });
+    }
+
+    private void finishBaudDetection(int detected, String cacheKey, int cachedBaudRate) {
+        AppCompatButton refreshButton = findViewById(R.id.RefreshButton);
+        refreshButton.setEnabled(true);
+        AppCompatButton connectButton = findViewById(R.id.ConnectButton);
+        connectButton.setEnabled(true);
+        TextView statusText = findViewById(R.id.StatusText);
+        statusText.setText(R.string.status_disconnected);
+        if(detected < 0) {
+            try {
+                port.close();
+            } catch (IOException ignored) {
+            }
+            Toast.makeText(this, "Serial communication error", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int rate = detected;
+        if(rate == 0) {
+            rate = cachedBaudRate > 0 ? cachedBaudRate : defaultBaudRate;
+            Toast.makeText(this, String.format(Locale.ROOT, "Baud rate not detected, using %d", rate),
+                    Toast.LENGTH_SHORT).show();
+        } else if(rate != cachedBaudRate) {
+            SharedPreferences sp = getPreferences(MODE_PRIVATE);
+            SharedPreferences.Editor spe = sp.edit();
+            spe.putInt(cacheKey, rate);
+            spe.apply();
+        }
+        startCommunication(rate);
+        if(connected) {
+            statusText.setText(getString(R.string.status_connected_baud, rate));
+        }
+    }
+
     private void saveMapping() {
-        if(mappingUnsaved) {
-            String mappingString = (new JSONObject(mapping)).toString();
-            String pairString = (new JSONObject(pair)).toString();
+        if(engine.isMappingUnsaved()) {
+            String mappingString = (new JSONObject(engine.getMapping())).toString();
+            String pairString = (new JSONObject(engine.getPair())).toString();
+            String controlsString = (new JSONObject(engine.getControls())).toString();
+            String contactsString = (new JSONObject(engine.getContacts())).toString();
             SharedPreferences sp = getPreferences(MODE_PRIVATE);
             SharedPreferences.Editor spe = sp.edit();
             spe.putString("mapping", mappingString);
             spe.putString("pair", pairString);
+            spe.putString("controls", controlsString);
+            spe.putString("contacts", contactsString);
             spe.apply();
-            mappingUnsaved = false;
+            engine.setMappingUnsaved(false);
         }
     }
 
@@ -569,39 +628,51 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
         }
     }
 
-    private void clearMapping() {
-        mapping.clear();
-        pair.clear();
-        mappingUnsaved = false;
-    }
-
     private void loadMapping() {
         SharedPreferences sp = getPreferences(MODE_PRIVATE);
         String mappingString = sp.getString("mapping", null);
         if(mappingString != null) {
             try {
-                loadJsonObjectIntoMap(new JSONObject(mappingString), mapping);
+                loadJsonObjectIntoMap(new JSONObject(mappingString), engine.getMapping());
             } catch (JSONException e) {
-                clearMapping();
+                engine.clearMapping();
                 return;
             }
         } else {
-            clearMapping();
+            engine.clearMapping();
             return;
         }
         String pairString = sp.getString("pair", null);
         if(pairString != null) {
             try {
-                loadJsonObjectIntoMap(new JSONObject(pairString), pair);
+                loadJsonObjectIntoMap(new JSONObject(pairString), engine.getPair());
             } catch (JSONException e) {
-                clearMapping();
+                engine.clearMapping();
                 return;
             }
         } else {
-            clearMapping();
+            engine.clearMapping();
             return;
         }
-        mappingUnsaved = false;
+        String controlsString = sp.getString("controls", null);
+        if(controlsString != null) {    // missing in mappings saved before controllers were supported
+            Map<String, String> controls = new HashMap<>();
+            try {
+                loadJsonObjectIntoMap(new JSONObject(controlsString), controls);
+            } catch (JSONException e) {
+                controls.clear();
+            }
+            engine.loadControls(controls);
+        }
+        String contactsString = sp.getString("contacts", null);
+        if(contactsString != null) {
+            try {
+                loadJsonObjectIntoMap(new JSONObject(contactsString), engine.getContacts());
+            } catch (JSONException e) {
+                engine.getContacts().clear();
+            }
+        }
+        engine.setMappingUnsaved(false);
     }
 
     @Override
@@ -655,27 +726,57 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
 
         int clr = ContextCompat.getColor(this, R.color.colorDefaultButton);
         ColorStateList defaultTint = ColorStateList.valueOf(clr);
-        LinearLayout mb = findViewById(R.id.ModifierButtons);
-        int mbCount = mb.getChildCount();
-        for(int i=0; i<mbCount; ++i) {
-            AppCompatButton mod = (AppCompatButton) mb.getChildAt(i);
-            String tag = (String) mod.getTag();
-            registerInternalButton(mod, tag);
-            ViewCompat.setBackgroundTintList(mod, defaultTint);
+        for(int layoutId: new int[] {R.id.ModifierButtons, R.id.ControllerButtons}) {
+            LinearLayout mb = findViewById(layoutId);
+            int mbCount = mb.getChildCount();
+            for(int i=0; i<mbCount; ++i) {
+                AppCompatButton mod = (AppCompatButton) mb.getChildAt(i);
+                String tag = (String) mod.getTag();
+                registerInternalButton(mod, tag);
+                ViewCompat.setBackgroundTintList(mod, defaultTint);
+            }
         }
-        mappingUnsaved = false;
+        engine.setMappingUnsaved(false);
 
         loadBaudRate();
         Spinner baudSpinner = findViewById(R.id.BaudSpinner);
         ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, baudList);
         baudSpinner.setAdapter(adapter);
-        String baudStr = String.valueOf(baudRate);
+        String baudStr = baudRate == autoBaudRate ? baudList[0] : String.valueOf(baudRate);
         for(int i=0; i<baudList.length; ++i) {
             if(baudList[i].equals(baudStr)) {
                 baudSpinner.setSelection(i);
             }
         }
 
+        loadFlowMode();
+        Spinner flowSpinner = findViewById(R.id.FlowSpinner);
+        ArrayAdapter<String> flowAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, FlowControl.modeNames);
+        flowSpinner.setAdapter(flowAdapter);
+        if(flowMode >= 0 && flowMode < FlowControl.modeNames.length) {
+            flowSpinner.setSelection(flowMode);
+        }
+
+        loadVelocityPreset();
+        Spinner velocitySpinner = findViewById(R.id.VelocitySpinner);
+        ArrayAdapter<String> velocityAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, NoteEngine.velocityPresetNames);
+        velocitySpinner.setAdapter(velocityAdapter);
+        velocitySpinner.setSelection(velocityPreset);
+        velocitySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                // unlike baud rate and flow control this applies right away, no need to reconnect
+                if(engine.setVelocityPreset(position)) {
+                    velocityPreset = position;
+                    saveVelocityPreset();
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
         AppCompatButton refreshButton = findViewById(R.id.RefreshButton);
         //ViewCompat.setBackgroundTintList(refreshButton, defaultTint);
         refreshButton.setOnClickListener(v -> refreshDeviceList());
@@ -730,28 +831,31 @@ public class MainActivity extends AppCompatActivity implements SerialInputOutput
     }
 
     @Override
-    public void onNewData(final byte[] data) {
-        runOnUiThread(() -> MainActivity.this.processSerialData(data));
+    public void onCommand(String command, long timestamp) {
+        processSerialCommand(command, timestamp);
     }
 
     @Override
-    public void onRunError(Exception e) {
-        runOnUiThread(() -> {
-            if(connected) {
-                Toast.makeText(MainActivity.this, "Connection lost", Toast.LENGTH_SHORT).show();
-                disconnectFromDevice();
-            }
-        });
+    public void onError(Exception e) {
+        if(connected) {
+            Toast.makeText(MainActivity.this, "Connection lost", Toast.LENGTH_SHORT).show();
+            disconnectFromDevice();
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         startMidi();
+        restoreSnapshot();
+        scheduleControlFlush();
     }
 
     @Override
     protected void onPause() {
+        handler.removeCallbacks(controlFlush);
+        controlFlushPending = false;
+        engine.setMidiEnabled(false);
         stopMidi();
         saveMapping();
         super.onPause();
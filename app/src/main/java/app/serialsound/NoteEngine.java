@@ -0,0 +1,525 @@
+package app.serialsound;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+class NoteEngine {
+
+    /*
+    turns commands into midi events, see MainActivity for the language used
+    kept free of UI code so that it can be driven from unit tests as well
+    */
+
+    interface MidiSink {
+        void write(byte[] event);               // the array is reused, copy it if it has to be kept
+    }
+
+    private static class Key {                  // state of a button, keyed by its press command
+        boolean pressed;
+        int playing = -1;                       // e.g. midi note 61 because sharp was held down while pressing it
+        long contactTime;                       // when its first contact came in or 0 if it did not (dual contact)
+    }
+
+    // what the synth should be doing right now, enough to bring a restarted synth back in sync
+    // modifiers and sustain are not part of it, the engine keeps tracking them while the synth is stopped
+    static class Snapshot {
+        final long[] notes = new long[2];       // bit set of sounding notes, owned or sustained
+        final int[] controls = new int[controlTags.length];     // -1 if never set, left alone by replay
+        final byte[] velocities = new byte[128];
+        int noteCount;
+
+        Snapshot() {
+            Arrays.fill(controls, -1);
+        }
+    }
+
+    private final MidiSink midiSink;
+
+    static final String[] controlTags = new String[] {"mod", "volume", "expression", "bend"};
+    private static final int[] controlNumbers = new int[] {1, 7, 11, -1};   // -1 is pitch bend
+    static final int controlInputMax = 1023;    // e.g. analogRead() on an Arduino
+    static final int controlDeadband = 4;       // smaller changes of the input are treated as noise
+    static final int defaultVelocity = 0x7f;
+    static final long defaultVelocityFastMicros = 2000;     // this quick or quicker is full velocity
+    static final long defaultVelocitySlowMicros = 150000;   // this slow or slower is minimum velocity
+    static final double defaultVelocityCurve = 2.0;         // > 1 makes soft notes easier to play
+    static final long contactTimeoutMicros = 1000000;       // older first contacts are considered stale
+    // choices offered in the app, the first one is the default
+    static final String[] velocityPresetNames = new String[] {"Normal", "Linear", "Soft", "Loud", "Slow keys"};
+    private static final long[] velocityPresetFastMicros = new long[] {2000, 2000, 2000, 2000, 5000};
+    private static final long[] velocityPresetSlowMicros = new long[] {150000, 150000, 150000, 150000, 400000};
+    private static final double[] velocityPresetCurves = new double[] {2.0, 1.0, 3.0, 0.5, 2.0};
+
+    private final Map<String, String> mapping;  // e.g. "button 1 pressed" to midi note 60 (presses only)
+    private final Map<String, String> pair;     // e.g. "button 1 pressed" to "button 1 released" and vice versa
+    private final Map<String, Key> keys;        // e.g. "button 1 pressed" to current state of button 1 (presses only)
+    private final int[] owners;                 // e.g. midi note 61 should be stopped if buttons 1 & 2 are both
+                                                    // released, as button 1 also plays midi node 61 right now
+    private final boolean[] sustained;          // unowned notes playing only because of sustain
+    private int sustainers;                     // sustain should last until this many buttons are released
+    private int offset;                         // modifier to be added to newly played notes
+                                                    // e.g. sharp = 1, flat = -1, octave up = 12, down = -12
+    private final Map<String, String> controls; // e.g. "pot 1" to "volume", "pot 1 512" then sets the volume
+    private final int[] controlInput;           // last accepted input value for each of controlTags
+    private final int[] controlValue;           // latest output value, sent at the next flush
+    private final int[] controlSent;            // last output value actually sent
+    private String[] controlPrefixes;           // the keys of controls, scanned without allocating per sample
+    private int[] controlPrefixIndex;           // index into controlTags for each of controlPrefixes
+    private boolean controlsDirty;
+    private final Map<String, String> contacts; // e.g. "key 1 touched" to "key 1 pressed" for dual contact keys
+    private final int[] noteVelocity;           // velocity each note was started with, for replay
+    private long velocityFastMicros;
+    private long velocitySlowMicros;
+    private double velocityCurve;
+    private boolean midiEnabled;                // off while the synth is stopped, the state is still tracked
+    private final byte[] event;                 // every midi event is built here, nothing is allocated per event
+    private boolean mappingUnsaved;
+
+    NoteEngine(MidiSink midiSink) {
+        this.midiSink = midiSink;
+        mapping = new HashMap<>();
+        pair = new HashMap<>();
+        keys = new HashMap<>();
+        owners = new int[128];
+        sustained = new boolean[128];
+        sustainers = 0;
+        offset = 0;
+        controls = new HashMap<>();
+        controlInput = new int[controlTags.length];
+        controlValue = new int[controlTags.length];
+        controlSent = new int[controlTags.length];
+        for(int i=0; i<controlTags.length; ++i) {
+            controlInput[i] = -1;
+            controlValue[i] = -1;
+            controlSent[i] = -1;
+        }
+        controlsDirty = false;
+        controlPrefixes = new String[0];
+        controlPrefixIndex = new int[0];
+        contacts = new HashMap<>();
+        noteVelocity = new int[128];
+        velocityFastMicros = defaultVelocityFastMicros;
+        velocitySlowMicros = defaultVelocitySlowMicros;
+        velocityCurve = defaultVelocityCurve;
+        midiEnabled = true;
+        event = new byte[3];
+        mappingUnsaved = false;
+    }
+
+    Map<String, String> getMapping() {
+        return mapping;
+    }
+
+    Map<String, String> getPair() {
+        return pair;
+    }
+
+    Map<String, String> getControls() {
+        return Collections.unmodifiableMap(controls);   // changed through registerControl and loadControls only
+    }
+
+    // e.g. the controllers saved by an earlier session, replacing the current ones
+    void loadControls(Map<String, String> loaded) {
+        controls.clear();
+        controls.putAll(loaded);
+        updateControlPrefixes();
+    }
+
+    Map<String, String> getContacts() {
+        return contacts;
+    }
+
+    void setVelocityCurve(long fastMicros, long slowMicros, double curve) {
+        velocityFastMicros = fastMicros;
+        velocitySlowMicros = Math.max(slowMicros, fastMicros + 1);
+        velocityCurve = curve;
+    }
+
+    // returns false for an unknown preset, e.g. from a newer version, the curve is left alone then
+    boolean setVelocityPreset(int preset) {
+        if(preset < 0 || preset >= velocityPresetNames.length) return false;
+        setVelocityCurve(velocityPresetFastMicros[preset], velocityPresetSlowMicros[preset], velocityPresetCurves[preset]);
+        return true;
+    }
+
+    boolean isMappingUnsaved() {
+        return mappingUnsaved;
+    }
+
+    void setMappingUnsaved(boolean mappingUnsaved) {
+        this.mappingUnsaved = mappingUnsaved;
+    }
+
+    void clearMapping() {
+        mapping.clear();
+        pair.clear();
+        controls.clear();
+        updateControlPrefixes();
+        contacts.clear();
+        mappingUnsaved = false;
+    }
+
+    private void send() {
+        if(midiEnabled) midiSink.write(event);
+    }
+
+    void setMidiEnabled(boolean midiEnabled) {
+        this.midiEnabled = midiEnabled;
+    }
+
+    private void midiNoteOff(int note) {
+        event[0] = (byte) 0x80;
+        event[1] = (byte) note;
+        event[2] = 0;
+        send();
+    }
+
+    private void midiNoteOn(int note, int velocity) {
+        if(note >= 0 && note < 128) noteVelocity[note] = velocity;
+        event[0] = (byte) 0x90;
+        event[1] = (byte) note;
+        event[2] = (byte) velocity;
+        send();
+    }
+
+    private void midiControl(int index, int value) {
+        int number = controlNumbers[index];
+        if(number < 0) {
+            event[0] = (byte) 0xe0;
+            event[1] = (byte) (value & 0x7f);
+            event[2] = (byte) (value >> 7);
+        } else {
+            event[0] = (byte) 0xb0;
+            event[1] = (byte) number;
+            event[2] = (byte) value;
+        }
+        send();
+    }
+
+    private void debugOffset() {
+        if(Log.isLoggable("offset", Log.DEBUG)) {   // saves building the string on every modifier
+            Log.d("offset", String.valueOf(offset));
+        }
+    }
+
+    private static boolean isNoteTag(String tag) {
+        if(tag.isEmpty()) return false;
+        for(int i=0; i<tag.length(); ++i) {
+            char c = tag.charAt(i);
+            if(c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private Key key(String command) {
+        Key key = keys.get(command);
+        if(key == null) {       // e.g. after the mapping was loaded from storage, only once per button
+            key = new Key();
+            keys.put(command, key);
+        }
+        return key;
+    }
+
+    void handlePress(String command, int velocity) {
+        String tag = mapping.get(command);
+        if(tag == null) return;
+        Key key = key(command);
+        if(key.pressed) return;
+        key.pressed = true;
+        if(isNoteTag(tag)) {
+            int note = Integer.parseInt(tag) + offset;
+            if(note < 0 || note > 127) return;     // shifted out of midi range
+            key.playing = note;
+            if(owners[note] == 0) {
+                midiNoteOn(note, velocity);
+                sustained[note] = false;    // owned again, must not be stopped with the sustain
+            }
+            ++owners[note];
+        }
+        else if(tag.equals("sharp")) {
+            ++offset;
+            debugOffset();
+        }
+        else if(tag.equals("flat")) {
+            --offset;
+            debugOffset();
+        }
+        else if(tag.equals("up")) {
+            offset += 12;
+            debugOffset();
+        }
+        else if((tag.equals("down"))) {
+            offset -= 12;
+            debugOffset();
+        }
+        else if((tag.equals("sustain"))) {
+            ++sustainers;
+        }
+    }
+
+    void handleRelease(String command) {
+        // the argument is already the press command corresponding to the release
+        Key key = keys.get(command);
+        if(key == null || !key.pressed) return;
+        String tag = mapping.get(command);
+        if(tag == null) return;
+        key.pressed = false;
+        if(isNoteTag(tag)) {
+            int note = key.playing;
+            if(note < 0) return;
+            key.playing = -1;
+            if(owners[note] > 0 && --owners[note] == 0) {
+                handleOrphanedNote(note);
+            }
+        }
+        else if(tag.equals("sharp")) {
+            --offset;
+            debugOffset();
+        }
+        else if(tag.equals("flat")) {
+            ++offset;
+            debugOffset();
+        }
+        else if(tag.equals("up")) {
+            offset -= 12;
+            debugOffset();
+        }
+        else if(tag.equals("down")) {
+            offset += 12;
+            debugOffset();
+        }
+        else if(tag.equals("sustain")) {
+            if(sustainers > 0) --sustainers;
+            if(sustainers == 0) {
+                handleStopSustain();
+            }
+        }
+    }
+
+    private void handleOrphanedNote(int note) {
+        if(sustainers == 0) {
+            midiNoteOff(note);
+        } else {
+            sustained[note] = true;
+        }
+    }
+
+    private void handleStopSustain() {
+        for(int note=0; note<128; ++note) {
+            if(sustained[note]) {
+                midiNoteOff(note);
+                sustained[note] = false;
+            }
+        }
+    }
+
+    static int controlIndex(String tag) {
+        for(int i=0; i<controlTags.length; ++i) {
+            if(controlTags[i].equals(tag)) return i;
+        }
+        return -1;
+    }
+
+    // the value after the last space of a command, or -1 if there is none
+    private static int parseControlValue(String command) {
+        int start = command.lastIndexOf(' ') + 1;
+        if(start <= 1 || start == command.length()) return -1;
+        int value = 0;
+        for(int i=start; i<command.length(); ++i) {
+            char c = command.charAt(i);
+            if(c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+            if(value > controlInputMax) value = controlInputMax;
+        }
+        return value;
+    }
+
+    private void updateControlPrefixes() {
+        controlPrefixes = controls.keySet().toArray(new String[0]);
+        controlPrefixIndex = new int[controlPrefixes.length];
+        for(int i=0; i<controlPrefixes.length; ++i) {
+            controlPrefixIndex[i] = controlIndex(controls.get(controlPrefixes[i]));
+        }
+    }
+
+    // the index into controlTags of a learned controller the command is a sample of, or -1
+    private int controlIndexOf(String command) {
+        if(controlPrefixes.length == 0 || parseControlValue(command) < 0) return -1;
+        int space = command.lastIndexOf(' ');
+        for(int i=0; i<controlPrefixes.length; ++i) {
+            String prefix = controlPrefixes[i];
+            if(prefix.length() == space && command.regionMatches(0, prefix, 0, space)) return controlPrefixIndex[i];
+        }
+        return -1;
+    }
+
+    boolean isControlSample(String command) {
+        return controlIndexOf(command) >= 0;
+    }
+
+    boolean hasPendingControls() {
+        return controlsDirty;
+    }
+
+    private void handleControl(String command) {
+        int index = controlIndexOf(command);
+        if(index < 0) return;
+        int value = parseControlValue(command);
+        int last = controlInput[index];
+        if(last >= 0 && Math.abs(value - last) < controlDeadband && value != 0 && value != controlInputMax) return;
+        controlInput[index] = value;
+        int outputMax = controlNumbers[index] < 0 ? 0x3fff : 0x7f;
+        controlValue[index] = (value * outputMax + controlInputMax / 2) / controlInputMax;
+        if(controlValue[index] != controlSent[index]) controlsDirty = true;
+    }
+
+    // sends the latest value of each changed controller, called a little after hasPendingControls turned true
+    // so that fast streams of values are coalesced instead of flooding the synth
+    void flushControls() {
+        if(!controlsDirty) return;
+        controlsDirty = false;
+        for(int i=0; i<controlTags.length; ++i) {
+            if(controlValue[i] >= 0 && controlValue[i] != controlSent[i]) {
+                controlSent[i] = controlValue[i];
+                midiControl(i, controlValue[i]);
+            }
+        }
+    }
+
+    void capture(Snapshot snapshot) {
+        snapshot.notes[0] = 0;
+        snapshot.notes[1] = 0;
+        snapshot.noteCount = 0;
+        for(int note=0; note<128; ++note) {
+            if(owners[note] > 0 || sustained[note]) addNote(snapshot, note);
+            snapshot.velocities[note] = (byte) noteVelocity[note];
+        }
+        System.arraycopy(controlValue, 0, snapshot.controls, 0, controlValue.length);
+    }
+
+    private static void addNote(Snapshot snapshot, int note) {
+        long bit = 1L << (note & 63);
+        if((snapshot.notes[note >> 6] & bit) != 0) return;
+        snapshot.notes[note >> 6] |= bit;
+        ++snapshot.noteCount;
+    }
+
+    // sounds everything in the snapshot again, meant for a freshly started synth
+    void replay(Snapshot snapshot) {
+        for(int note=0; note<128; ++note) {
+            if((snapshot.notes[note >> 6] & 1L << (note & 63)) != 0) {
+                midiNoteOn(note, snapshot.velocities[note]);
+            }
+        }
+        for(int i=0; i<controlTags.length; ++i) {
+            controlSent[i] = -1;
+            if(snapshot.controls[i] >= 0) {
+                controlSent[i] = snapshot.controls[i];
+                midiControl(i, snapshot.controls[i]);
+            }
+        }
+    }
+
+    // maps the time between first and bottom contact to a velocity, quicker is louder
+    int velocity(long micros) {
+        if(micros <= velocityFastMicros) return 127;
+        if(micros >= velocitySlowMicros) return 1;
+        double x = (double) (micros - velocityFastMicros) / (velocitySlowMicros - velocityFastMicros);
+        return 1 + (int) Math.round(126 * Math.pow(1 - x, velocityCurve));
+    }
+
+    private int pressVelocity(String command, long timestamp) {
+        Key key = keys.get(command);
+        if(key == null || key.contactTime == 0) return defaultVelocity;    // single contact or first contact missed
+        long micros = (timestamp - key.contactTime) / 1000;
+        key.contactTime = 0;
+        if(micros < 0 || micros > contactTimeoutMicros) return defaultVelocity;
+        return velocity(micros);
+    }
+
+    void handleCommand(String command) {
+        handleCommand(command, System.nanoTime());
+    }
+
+    // the timestamp (System.nanoTime) should be taken as soon as the command was received
+    void handleCommand(String command, long timestamp) {
+        Log.d("command", command);
+        if(mapping.containsKey(command)) {
+            handlePress(command, pressVelocity(command, timestamp));
+        } else if(contacts.containsKey(command)) {
+            key(contacts.get(command)).contactTime = timestamp;
+        } else {
+            if(pair.containsKey(command)) {
+                String pressCommand = pair.get(command);
+                handleRelease(pressCommand);
+            } else {
+                handleControl(command);
+            }
+        }
+    }
+
+    void unregisterCommand(String command, boolean considerPair) {
+        mappingUnsaved = true;
+        if(considerPair && pair.containsKey(command)) {
+            unregisterCommand(pair.get(command), false);
+        }
+        if(mapping.containsKey(command)) {
+            handleRelease(command);
+            mapping.remove(command);
+        }
+        pair.remove(command);
+        Key key = keys.remove(command);
+        if(key != null && key.playing >= 0) {
+            int note = key.playing;
+            if(owners[note] > 0 && --owners[note] == 0) {
+                handleOrphanedNote(note);
+            }
+        }
+        contacts.remove(command);
+        if(contacts.containsValue(command)) {
+            Iterator<Map.Entry<String, String>> iter = contacts.entrySet().iterator();
+            while(iter.hasNext()) {
+                if(iter.next().getValue().equals(command)) iter.remove();
+            }
+        }
+    }
+
+    void registerPressCommand(String cmd, String tag) {
+        unregisterCommand(cmd, true);
+        mapping.put(cmd, tag);
+        keys.put(cmd, new Key());
+    }
+
+    void registerReleaseCommand(String cmd, String pressCmd) {
+        unregisterCommand(cmd, true);
+        mapping.remove(cmd);     // these removes are superfluous, but let's be extra careful
+        pair.put(pressCmd, cmd);
+        pair.put(cmd, pressCmd);
+        keys.remove(cmd);
+    }
+
+    // e.g. "key 1 touched" as the first contact of "key 1 pressed", which must be registered already
+    void registerContact(String contactCmd, String pressCmd) {
+        unregisterCommand(contactCmd, true);
+        contacts.put(contactCmd, pressCmd);
+    }
+
+    // e.g. "pot 1 512" registers "pot 1" as a controller, returns false if the command carries no value
+    boolean registerControl(String command, String tag) {
+        if(parseControlValue(command) < 0) return false;
+        controls.put(command.substring(0, command.lastIndexOf(' ')), tag);
+        updateControlPrefixes();
+        mappingUnsaved = true;
+        return true;
+    }
+
+    void registerCommandPair(String pressCmd, String releaseCmd, String tag) {
+        registerPressCommand(pressCmd, tag);
+        registerReleaseCommand(releaseCmd, pressCmd);
+    }
+}
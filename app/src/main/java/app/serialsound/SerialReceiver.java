@@ -0,0 +1,87 @@
+package app.serialsound;
+
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import java.util.concurrent.Executor;
+
+class SerialReceiver implements SerialInputOutputManager.Listener {
+
+    /*
+    splits the raw serial stream into commands on the reader thread
+    a command may arrive split across several reads, so partial lines are kept until the delimiter shows up
+    each command is timestamped as soon as its delimiter is read, the ui thread may get to it much later
+    */
+
+    interface Callback {
+        void onCommand(String command, long timestamp);     // System.nanoTime() at the end of the line
+        void onError(Exception e);
+    }
+
+    static final int maxCommandLength = 256;    // longer lines are surely garbage, drop them
+
+    private final Executor executor;            // e.g. runOnUiThread, commands are handled there
+    private final Callback callback;
+    private final FlowControl flowControl;
+    private final byte[] lineBuffer;
+    private int lineLength;
+    private boolean lineOverflow;
+    private long droppedLines;
+
+    SerialReceiver(Executor executor, Callback callback) {
+        this(executor, callback, FlowControl.none());
+    }
+
+    SerialReceiver(Executor executor, Callback callback, FlowControl flowControl) {
+        this.executor = executor;
+        this.callback = callback;
+        this.flowControl = flowControl;
+        lineBuffer = new byte[maxCommandLength];
+        lineLength = 0;
+        lineOverflow = false;
+        droppedLines = 0;
+    }
+
+    long getDroppedLines() {
+        return droppedLines;
+    }
+
+    private void completeLine(long timestamp) {
+        boolean overflow = lineOverflow;
+        int length = lineLength;
+        lineLength = 0;
+        lineOverflow = false;
+        flowControl.onReceived();
+        if(overflow) {
+            ++droppedLines;
+            flowControl.onConsumed();
+            return;
+        }
+        final String cmd = new String(lineBuffer, 0, length).trim();
+        if(cmd.isEmpty()) {
+            flowControl.onConsumed();
+            return;
+        }
+        executor.execute(() -> {
+            callback.onCommand(cmd, timestamp);
+            flowControl.onConsumed();
+        });
+    }
+
+    @Override
+    public void onNewData(byte[] data) {
+        for(byte b: data) {
+            if(b == '\n') {
+                completeLine(System.nanoTime());
+            } else if(lineLength < lineBuffer.length) {
+                lineBuffer[lineLength++] = b;
+            } else {
+                lineOverflow = true;
+            }
+        }
+    }
+
+    @Override
+    public void onRunError(Exception e) {
+        executor.execute(() -> callback.onError(e));
+    }
+}
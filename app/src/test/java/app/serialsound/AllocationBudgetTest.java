@@ -0,0 +1,160 @@
+package app.serialsound;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fails when the steady-state event path starts allocating. GC pauses are audible on older phones,
+ * so presses, releases, modifiers and sustain must not create garbage once the engine is warmed up.
+ */
+public class AllocationBudgetTest {
+
+    private static final int warmupRounds = 20000;
+    private static final int measuredRounds = 50000;
+    private static final int buttons = 16;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Step {
+        void run(int round);
+    }
+
+    private static class Site {
+        final String name;
+        final double budget;    // bytes per call
+        final Step step;
+        long bytes;
+        long calls;
+
+        Site(String name, double budget, Step step) {
+            this.name = name;
+            this.budget = budget;
+            this.step = step;
+        }
+    }
+
+    private NoteEngine engine;
+    private SerialReceiver receiver;
+    private Map<String, Site> sites;
+    private String[] press;
+    private String[] release;
+    private byte[][] lines;
+    private String[] samples;
+    private long time;
+
+    @Before
+    public void setUp() {
+        engine = new NoteEngine(new RecordingMidiSink());
+        press = new String[buttons];
+        release = new String[buttons];
+        lines = new byte[buttons][];
+        for(int b=0; b<buttons; ++b) {
+            press[b] = FakeSerialPort.pressCommand(b);
+            release[b] = FakeSerialPort.releaseCommand(b);
+            lines[b] = (press[b] + "\n").getBytes();
+            engine.registerCommandPair(press[b], release[b], String.valueOf(60 + b));
+        }
+        engine.registerContact("key 0 touched", press[0]);
+        engine.registerCommandPair("sharp on", "sharp off", "sharp");
+        engine.registerCommandPair("up on", "up off", "up");
+        engine.registerCommandPair("sustain on", "sustain off", "sustain");
+        engine.registerControl("pot 1 0", "volume");
+        samples = new String[64];
+        for(int i=0; i<samples.length; ++i) {
+            samples[i] = "pot 1 " + (i * 16);    // far enough apart to pass the deadband
+        }
+        receiver = new SerialReceiver(Runnable::run, new SerialReceiver.Callback() {
+            @Override
+            public void onCommand(String command, long timestamp) {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail(e.toString());
+            }
+        });
+        time = 1000000000L;
+
+        // one round is a short phrase that ends with every button released and no modifier held
+        sites = new LinkedHashMap<>();
+        addSite("first contact", 0, r -> engine.handleCommand("key 0 touched", time += 3000000));
+        addSite("press note", 0, r -> engine.handleCommand(press[r % buttons], time += 1000000));
+        addSite("press modifier", 0, r -> engine.handleCommand("sharp on", time += 1000000));
+        addSite("press note with offset", 0, r -> engine.handleCommand(press[(r + 5) % buttons], time += 1000000));
+        addSite("press octave", 0, r -> engine.handleCommand("up on", time += 1000000));
+        addSite("press sustain", 0, r -> engine.handleCommand("sustain on", time += 1000000));
+        addSite("release note into sustain", 0, r -> engine.handleCommand(release[r % buttons], time += 1000000));
+        addSite("release modifier", 0, r -> engine.handleCommand("sharp off", time += 1000000));
+        addSite("release octave", 0, r -> engine.handleCommand("up off", time += 1000000));
+        addSite("release sustain", 0, r -> engine.handleCommand("sustain off", time += 1000000));
+        addSite("release note", 0, r -> engine.handleCommand(release[(r + 5) % buttons], time += 1000000));
+        addSite("unknown command", 0, r -> engine.handleCommand("garbage", time += 1000000));
+        addSite("controller sample", 0, r -> engine.handleCommand(samples[r % samples.length], time += 1000000));
+        addSite("unknown controller", 0, r -> engine.handleCommand("pot 2 512", time += 1000000));
+        addSite("flush controllers", 0, r -> engine.flushControls());
+        // the line itself has to become a String for the lookups, plus the task handing it to the ui thread
+        addSite("receive line", 160, r -> receiver.onNewData(lines[r % buttons]));
+    }
+
+    private void addSite(String name, double budget, Step step) {
+        sites.put(name, new Site(name, budget, step));
+    }
+
+    private long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void runRounds(int rounds, boolean measure, long overhead) {
+        for(int r=0; r<rounds; ++r) {
+            for(Site site: sites.values()) {
+                long before = allocatedBytes();
+                site.step.run(r);
+                long after = allocatedBytes();
+                if(measure) {
+                    site.bytes += after - before - overhead;
+                    ++site.calls;
+                }
+            }
+        }
+    }
+
+    private long measureOverhead() {
+        long min = Long.MAX_VALUE;
+        for(int i=0; i<10000; ++i) {
+            long before = allocatedBytes();
+            long after = allocatedBytes();
+            min = Math.min(min, after - before);
+        }
+        return min;
+    }
+
+    @Test
+    public void steadyStateEventPath_staysWithinBudget() {
+        assertTrue("thread allocation counters unavailable", threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        runRounds(warmupRounds, false, 0);
+        long overhead = measureOverhead();
+        runRounds(measuredRounds, true, overhead);
+
+        StringBuilder report = new StringBuilder("allocation per call:\n");
+        boolean failed = false;
+        for(Site site: sites.values()) {
+            double perCall = (double) site.bytes / site.calls;
+            // a little slack for counter granularity, a single object per call is well above it
+            boolean over = perCall > site.budget + 1;
+            failed |= over;
+            report.append(String.format(Locale.ROOT, "  %-28s %8.1f bytes (budget %.0f)%s%n",
+                    site.name, perCall, site.budget, over ? "  OVER BUDGET" : ""));
+        }
+        System.out.print(report);
+        assertFalse(report.toString(), failed);
+    }
+}
@@ -0,0 +1,213 @@
+package app.serialsound;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BaudDetectorTest {
+
+    private static final int[] rates = new int[] {9600, 19200, 57600, 115200, 250000};
+    private static final int[] allRates = new int[] {       // as offered by MainActivity
+            300, 1200, 2400, 4800, 9600, 19200, 38400, 57600, 74880,
+            115200, 230400, 250000, 500000, 1000000, 2000000
+    };
+
+    private final Set<String> known = new HashSet<>(Arrays.asList("button 1 pressed", "button 1 released"));
+
+    // talks at one rate, produces noise at the others
+    private static class FakePort implements BaudDetector.Port {
+        final int actualRate;
+        final Random random = new Random(1);
+        int currentRate;
+        int ratesTried;
+
+        FakePort(int actualRate) {
+            this.actualRate = actualRate;
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) {
+            currentRate = baudRate;
+            ++ratesTried;
+        }
+
+        @Override
+        public int read(byte[] dest, int timeoutMillis) {
+            if(actualRate == 0) return 0;
+            byte[] data;
+            if(currentRate == actualRate) {
+                data = "ed\nbutton 1 released\nbutton 1 pressed\n".getBytes();
+            } else {
+                data = new byte[16];
+                random.nextBytes(data);
+            }
+            System.arraycopy(data, 0, dest, 0, data.length);
+            return data.length;
+        }
+    }
+
+    // talks at a slow rate, at that rate the bytes only trickle in as fast as the line allows
+    private static class SlowPort implements BaudDetector.Port {
+        final int actualRate;
+        final boolean noisy;        // noise at the other rates, or nothing at all
+        final byte[] stream = "button 1 pressed\nbutton 1 released\n".getBytes();
+        final Random random = new Random(2);
+        int currentRate;
+        long start;
+        long delivered;
+
+        SlowPort(int actualRate, boolean noisy) {
+            this.actualRate = actualRate;
+            this.noisy = noisy;
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) {
+            currentRate = baudRate;
+            start = System.nanoTime();
+            delivered = 5;      // starts in the middle of a line
+        }
+
+        @Override
+        public int read(byte[] dest, int timeoutMillis) {
+            long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            while(true) {
+                long arrived = 5 + (System.nanoTime() - start) * actualRate / 10 / 1000000000L;
+                int n = (int) Math.min(arrived - delivered, dest.length);
+                if(currentRate != actualRate) {
+                    if(noisy) {
+                        random.nextBytes(dest);
+                        return 16;
+                    }
+                    n = 0;
+                }
+                if(n > 0) {
+                    for(int i=0; i<n; ++i) dest[i] = stream[(int) ((delivered + i) % stream.length)];
+                    delivered += n;
+                    return n;
+                }
+                if(System.nanoTime() >= deadline) return 0;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    // uses credit flow control, at its rate it only sends as many lines as it was granted, silent otherwise
+    private static class CreditPort implements BaudDetector.Port, FlowControl.Link {
+        final int actualRate;
+        int currentRate;
+        int credits;
+
+        CreditPort(int actualRate) {
+            this.actualRate = actualRate;
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) {
+            currentRate = baudRate;
+        }
+
+        @Override
+        public int read(byte[] dest, int timeoutMillis) {
+            if(currentRate != actualRate || credits == 0) {
+                try {
+                    Thread.sleep(Math.min(timeoutMillis, 5));
+                } catch (InterruptedException ignored) {
+                }
+                return 0;
+            }
+            --credits;
+            byte[] data = "button 1 pressed\n".getBytes();
+            System.arraycopy(data, 0, dest, 0, data.length);
+            return data.length;
+        }
+
+        @Override
+        public void write(byte[] data) {
+            String s = new String(data);
+            if(currentRate == actualRate && s.startsWith("credit ")) {
+                credits += Integer.parseInt(s.substring(7).trim());
+            }
+        }
+
+        @Override
+        public void setRts(boolean value) {
+        }
+    }
+
+    @Test
+    public void score_prefersKnownCommands() {
+        byte[] text = "button 1 pressed\nbutton 1 released\n".getBytes();
+        byte[] unknown = "button 2 pressed\nbutton 2 released\n".getBytes();
+        byte[] noise = new byte[] {(byte) 0xf0, 0x00, (byte) 0x80, '\n', (byte) 0xfe, 0x13, 0x7f};
+        int knownScore = BaudDetector.score(text, text.length, known);
+        int unknownScore = BaudDetector.score(unknown, unknown.length, known);
+        int noiseScore = BaudDetector.score(noise, noise.length, known);
+        assertTrue(knownScore > unknownScore);
+        assertTrue(unknownScore > 0);
+        assertTrue(noiseScore < 0);
+    }
+
+    @Test
+    public void detect_findsRate() throws Exception {
+        FakePort port = new FakePort(115200);
+        BaudDetector detector = new BaudDetector(port, known, 20, 2000);
+        assertEquals(115200, detector.detect(rates, 0));
+        assertTrue(detector.getBestScore() >= BaudDetector.confidentScore);
+    }
+
+    @Test
+    public void detect_triesPreferredRateFirst() throws Exception {
+        FakePort port = new FakePort(57600);
+        BaudDetector detector = new BaudDetector(port, known, 20, 2000);
+        assertEquals(57600, detector.detect(rates, 57600));
+        assertEquals(1, port.ratesTried);
+    }
+
+    @Test
+    public void detect_findsSlowRate() throws Exception {
+        SlowPort port = new SlowPort(300, true);
+        BaudDetector detector = new BaudDetector(port, known,
+                BaudDetector.defaultSampleMillis, BaudDetector.defaultBudgetMillis);
+        assertTrue(detector.sampleMillis(300) > 1000);
+        assertEquals(300, detector.detect(allRates, 0));
+    }
+
+    @Test
+    public void detect_findsSlowRateWhenOtherRatesAreQuiet() throws Exception {
+        SlowPort port = new SlowPort(300, false);
+        BaudDetector detector = new BaudDetector(port, known,
+                BaudDetector.defaultSampleMillis, BaudDetector.defaultBudgetMillis);
+        int round = 0;
+        for(int rate: allRates) round += detector.sampleMillis(rate);
+        assertTrue("one round takes " + round + " ms", round <= BaudDetector.defaultBudgetMillis);
+        assertEquals(300, detector.detect(allRates, 0));
+    }
+
+    @Test
+    public void detect_grantsCreditsAtEachRate() throws Exception {
+        CreditPort port = new CreditPort(57600);
+        FlowControl flowControl = new FlowControl(port, FlowControl.MODE_CREDIT, BaudDetector.flowCapacity);
+        BaudDetector detector = new BaudDetector(port, known, 20, 2000, flowControl);
+        assertEquals(57600, detector.detect(rates, 0));
+        assertTrue(port.credits < BaudDetector.flowCapacity);
+    }
+
+    @Test
+    public void detect_givesUpWithinBudget() throws Exception {
+        FakePort port = new FakePort(0);
+        BaudDetector detector = new BaudDetector(port, known, 5, 100);
+        long start = System.nanoTime();
+        assertEquals(0, detector.detect(rates, 0));
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+    }
+}
@@ -0,0 +1,101 @@
+package app.serialsound;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ContinuousControlTest {
+
+    private RecordingMidiSink sink;
+    private NoteEngine engine;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingMidiSink();
+        engine = new NoteEngine(sink);
+        assertTrue(engine.registerControl("pot 1 0", "volume"));
+        assertTrue(engine.registerControl("pot 2 0", "bend"));
+    }
+
+    @Test
+    public void register_needsValue() {
+        assertFalse(engine.registerControl("pot", "mod"));
+        assertFalse(engine.registerControl("pot 3 x", "mod"));
+        assertFalse(engine.registerControl("123", "mod"));
+    }
+
+    @Test
+    public void burst_isCoalescedPerTick() {
+        for(int v=0; v<=1023; ++v) {
+            engine.handleCommand("pot 1 " + v);
+            engine.handleCommand("pot 2 " + (1023 - v));
+        }
+        assertEquals(0, sink.controlEvents);
+        assertTrue(engine.hasPendingControls());
+        engine.flushControls();
+        assertFalse(engine.hasPendingControls());
+        assertEquals(2, sink.controlEvents);
+        assertEquals(127, sink.controllers[7]);
+        assertEquals(0, sink.pitchBend);
+        engine.flushControls();
+        assertEquals(2, sink.controlEvents);
+    }
+
+    @Test
+    public void jitter_isFilteredByDeadband() {
+        engine.handleCommand("pot 1 512");
+        engine.flushControls();
+        assertEquals(1, sink.controlEvents);
+        for(int i=0; i<100; ++i) {
+            engine.handleCommand("pot 1 " + (510 + i % 5));
+            engine.flushControls();
+        }
+        assertEquals(1, sink.controlEvents);
+        engine.handleCommand("pot 1 600");
+        engine.flushControls();
+        assertEquals(2, sink.controlEvents);
+        assertEquals(74, sink.controllers[7]);
+    }
+
+    @Test
+    public void bend_isCenteredAtMidRange() {
+        engine.handleCommand("pot 2 512");
+        engine.flushControls();
+        assertEquals(8200, sink.pitchBend, 10);
+    }
+
+    @Test
+    public void unknownPrefix_isIgnored() {
+        engine.handleCommand("pot 9 512");
+        engine.handleCommand("button 1 pressed");
+        assertFalse(engine.hasPendingControls());
+        engine.flushControls();
+        assertEquals(0, sink.controlEvents);
+    }
+
+    @Test
+    public void loadControls_replacesLearnedControllers() {
+        Map<String, String> saved = new HashMap<>();
+        saved.put("pot 7", "expression");
+        engine.loadControls(saved);
+        assertFalse(engine.isControlSample("pot 1 512"));
+        assertTrue(engine.isControlSample("pot 7 512"));
+        engine.handleCommand("pot 7 1023");
+        engine.flushControls();
+        assertEquals(127, sink.controllers[11]);
+        assertEquals(saved, engine.getControls());
+    }
+
+    @Test
+    public void samples_areRecognized() {
+        assertTrue(engine.isControlSample("pot 1 512"));
+        assertTrue(engine.isControlSample("pot 2 0"));
+        assertFalse(engine.isControlSample("pot 1"));
+        assertFalse(engine.isControlSample("pot 9 512"));
+        assertFalse(engine.isControlSample("button 1 pressed"));
+    }
+}
@@ -0,0 +1,199 @@
+package app.serialsound;
+
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Stands in for a USB serial port with buttons attached, feeding synthetic traffic into the same
+ * listener that SerialInputOutputManager would call.
+ */
+class FakeSerialPort {
+
+    int buttons = 16;
+    double pressRate = 100;         // presses per second of simulated time
+    double chordDensity = 0.3;      // chance that a press is accompanied by up to three more presses
+    double bounceRate = 0.1;        // chance that a press bounces (press, release, press)
+    double releaseRate = 0.6;       // chance that a held button is released after each step
+    double splitRate = 0.5;         // chance that a step is delivered in randomly cut chunks
+    double garbageRate = 0.01;      // chance of a garbage line before each command
+    double noiseRate = 0;           // chance of binary noise without a delimiter inside or just before a command
+    double lostDelimiterRate = 0;   // chance that a command runs into the next one
+    double overrunRate = 0;         // chance of noise longer than a line before a command
+    int maxPacketSize = 64;         // largest chunk handed to the listener at once
+    int baudRate = 2000000;         // link speed used to compute simulated link utilization
+    long seed = 1;
+
+    long commandsSent;
+    long commandsIntact;            // arrived on a line of their own, untouched
+    long garbageSent;
+    long unknownLines;              // garbage lines and lines with broken commands
+    long overlongLines;             // longer than the receiver accepts, must be dropped
+    long bytesSent;
+    long chunksSent;
+    double simulatedSeconds;
+
+    private Random random;
+    private boolean[] held;
+    private ByteArrayOutputStream pending;
+    private int lineLength;
+    private boolean lineBroken;
+    private boolean clean;          // no more noise, e.g. while releasing everything at the end
+
+    static String pressCommand(int button) {
+        return "button " + button + " pressed";
+    }
+
+    static String releaseCommand(int button) {
+        return "button " + button + " released";
+    }
+
+    /** Link utilization at the configured baud rate, 8N1 framing, over the simulated time. */
+    double linkUtilization() {
+        if(simulatedSeconds == 0) return 0;
+        return bytesSent * 10.0 / baudRate / simulatedSeconds;
+    }
+
+    void run(SerialInputOutputManager.Listener listener, int steps) {
+        random = new Random(seed);
+        held = new boolean[buttons];
+        pending = new ByteArrayOutputStream();
+        commandsSent = 0;
+        commandsIntact = 0;
+        garbageSent = 0;
+        unknownLines = 0;
+        overlongLines = 0;
+        lineLength = 0;
+        lineBroken = false;
+        clean = false;
+        bytesSent = 0;
+        chunksSent = 0;
+        simulatedSeconds = 0;
+        for(int i=0; i<steps; ++i) {
+            press(randomFreeButton());
+            if(random.nextDouble() < chordDensity) {
+                int extra = 1 + random.nextInt(3);
+                for(int j=0; j<extra; ++j) {
+                    press(randomFreeButton());
+                }
+            }
+            for(int b=0; b<buttons; ++b) {
+                if(held[b] && random.nextDouble() < releaseRate) {
+                    release(b);
+                }
+            }
+            flush(listener);
+            simulatedSeconds += 1.0 / pressRate;
+        }
+        // the link calms down, the receiver has to be back in sync for these
+        clean = true;
+        if(lineLength > 0) endLine();
+        for(int b=0; b<buttons; ++b) {
+            if(held[b]) release(b);
+        }
+        flush(listener);
+    }
+
+    private int randomFreeButton() {
+        int start = random.nextInt(buttons);
+        for(int i=0; i<buttons; ++i) {
+            int b = (start + i) % buttons;
+            if(!held[b]) return b;
+        }
+        return -1;
+    }
+
+    // a button only changes state if the engine got the command, i.e. if it arrived intact
+    private void press(int button) {
+        if(button < 0) return;
+        if(send(pressCommand(button))) held[button] = true;
+        if(random.nextDouble() < bounceRate) {
+            if(send(releaseCommand(button))) held[button] = false;
+            if(send(pressCommand(button))) held[button] = true;
+        }
+    }
+
+    private void release(int button) {
+        if(send(releaseCommand(button))) held[button] = false;
+    }
+
+    private void write(int b) {
+        pending.write(b);
+        ++lineLength;
+    }
+
+    // 0x80 and up, like a wrong baud rate or a glitch, can neither be a delimiter nor be trimmed away
+    private void noise(int length) {
+        for(int i=0; i<length; ++i) {
+            write(0x80 + random.nextInt(0x80));
+        }
+        lineBroken = true;
+    }
+
+    private void endLine() {
+        pending.write('\n');
+        if(lineLength > SerialReceiver.maxCommandLength) {
+            ++overlongLines;
+        } else if(lineBroken) {
+            ++unknownLines;
+        } else {
+            ++commandsIntact;
+        }
+        lineLength = 0;
+        lineBroken = false;
+    }
+
+    // returns true if the command arrives intact
+    private boolean send(String command) {
+        if(!clean && random.nextDouble() < garbageRate) {
+            int length = 1 + random.nextInt(20);
+            write('~');
+            for(int i=0; i<length; ++i) {
+                int b = random.nextInt(255);
+                write(b < '\n' ? b : b + 1);  // anything but the delimiter
+            }
+            lineBroken = true;
+            endLine();
+            ++garbageSent;
+        }
+        if(!clean && random.nextDouble() < overrunRate) {
+            noise(SerialReceiver.maxCommandLength + 1 + random.nextInt(64));
+        }
+        byte[] bytes = command.getBytes();
+        int noiseAt = !clean && random.nextDouble() < noiseRate ? random.nextInt(bytes.length + 1) : -1;
+        for(int i=0; i<bytes.length; ++i) {
+            if(i == noiseAt) noise(1 + random.nextInt(8));
+            write(bytes[i]);
+        }
+        if(noiseAt == bytes.length) noise(1 + random.nextInt(8));
+        if(random.nextBoolean()) {
+            write('\r');    // Serial.println() style line ending
+        }
+        ++commandsSent;
+        if(!clean && random.nextDouble() < lostDelimiterRate) {
+            lineBroken = true;
+            return false;
+        }
+        boolean intact = !lineBroken && lineLength <= SerialReceiver.maxCommandLength;
+        endLine();
+        return intact;
+    }
+
+    private void flush(SerialInputOutputManager.Listener listener) {
+        byte[] data = pending.toByteArray();
+        pending.reset();
+        bytesSent += data.length;
+        boolean split = random.nextDouble() < splitRate;
+        int pos = 0;
+        while(pos < data.length) {
+            int size = split ? 1 + random.nextInt(maxPacketSize) : maxPacketSize;
+            size = Math.min(size, data.length - pos);
+            byte[] chunk = new byte[size];
+            System.arraycopy(data, pos, chunk, 0, size);
+            listener.onNewData(chunk);
+            ++chunksSent;
+            pos += size;
+        }
+    }
+}
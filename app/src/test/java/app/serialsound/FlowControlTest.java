@@ -0,0 +1,142 @@
+package app.serialsound;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlowControlTest {
+
+    private static class RecordingLink implements FlowControl.Link {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        boolean rts;
+
+        @Override
+        public void write(byte[] data) {
+            written.write(data, 0, data.length);
+        }
+
+        @Override
+        public void setRts(boolean value) {
+            rts = value;
+        }
+
+        String take() {
+            String s = written.toString();
+            written.reset();
+            return s;
+        }
+    }
+
+    // like the app: writes go out on a writer thread of their own, while the reader blocks until the device
+    // sends something, so a held back device only gets going again if nothing waits for a read
+    private static class WriterLink implements FlowControl.Link {
+        final List<byte[]> queued = new ArrayList<>();
+        boolean held;
+        int credits;
+
+        @Override
+        public void write(byte[] data) {
+            queued.add(data);
+        }
+
+        @Override
+        public void setRts(boolean value) {
+        }
+
+        void flush() {
+            for(byte[] data: queued) {
+                String s = new String(data);
+                if(s.equals("\u0011")) {
+                    held = false;
+                } else if(s.equals("\u0013")) {
+                    held = true;
+                } else if(s.startsWith("credit ")) {
+                    credits += Integer.parseInt(s.substring(7).trim());
+                }
+            }
+            queued.clear();
+        }
+    }
+
+    // the device has more lines than fit into the queue and the ui thread handles only every other one
+    private void runSlowConsumer(int mode, boolean usesCredits) {
+        WriterLink link = new WriterLink();
+        FlowControl fc = new FlowControl(link, mode, 8);
+        int lines = 100;
+        int sent = 0;
+        int handled = 0;
+        fc.start();
+        for(int step=0; step<10000 && handled < lines; ++step) {
+            boolean canSend = sent < lines && (usesCredits ? link.credits > 0 : !link.held);
+            if(canSend) {
+                ++sent;
+                if(usesCredits) --link.credits;
+                fc.onReceived();
+            } else if(fc.getPending() == 0 && link.queued.isEmpty()) {
+                fail("device held back for good, " + handled + " of " + lines + " lines handled");
+            }
+            link.flush();
+            if(fc.getPending() > 0 && (step % 2 == 1 || sent == lines)) {
+                fc.onConsumed();
+                ++handled;
+            }
+        }
+        assertEquals(lines, handled);
+    }
+
+    @Test
+    public void xonXoff_resumesWhileDeviceIsSilent() {
+        runSlowConsumer(FlowControl.MODE_XON_XOFF, false);
+    }
+
+    @Test
+    public void credit_grantsWhileDeviceIsSilent() {
+        runSlowConsumer(FlowControl.MODE_CREDIT, true);
+    }
+
+    @Test
+    public void rtsCts_followsWatermarks() {
+        RecordingLink link = new RecordingLink();
+        FlowControl fc = new FlowControl(link, FlowControl.MODE_RTS_CTS, 8);
+        fc.start();
+        assertTrue(link.rts);
+        for(int i=0; i<6; ++i) fc.onReceived();
+        assertFalse(link.rts);
+        for(int i=0; i<3; ++i) fc.onConsumed();
+        assertFalse(link.rts);
+        fc.onConsumed();
+        assertTrue(link.rts);
+    }
+
+    @Test
+    public void xonXoff_sendsEachTransitionOnce() {
+        RecordingLink link = new RecordingLink();
+        FlowControl fc = new FlowControl(link, FlowControl.MODE_XON_XOFF, 8);
+        fc.start();
+        assertEquals("\u0011", link.take());
+        for(int i=0; i<8; ++i) fc.onReceived();
+        assertEquals("\u0013", link.take());
+        for(int i=0; i<8; ++i) fc.onConsumed();
+        assertEquals("\u0011", link.take());
+    }
+
+    @Test
+    public void credit_neverExceedsCapacity() {
+        RecordingLink link = new RecordingLink();
+        FlowControl fc = new FlowControl(link, FlowControl.MODE_CREDIT, 8);
+        fc.start();
+        assertEquals("credit 8\n", link.take());
+        for(int i=0; i<8; ++i) fc.onReceived();
+        fc.onConsumed();
+        assertEquals("", link.take());
+        fc.onConsumed();
+        assertEquals("credit 2\n", link.take());
+        for(int i=0; i<6; ++i) fc.onConsumed();
+        assertEquals("credit 2\ncredit 2\ncredit 2\n", link.take());
+        assertEquals(0, fc.getPending());
+    }
+}
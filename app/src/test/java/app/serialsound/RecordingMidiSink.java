@@ -0,0 +1,54 @@
+package app.serialsound;
+
+import java.util.Arrays;
+
+/**
+ * Collects the MIDI events written by the engine and keeps track of which notes are sounding.
+ */
+class RecordingMidiSink implements NoteEngine.MidiSink {
+
+    final boolean[] sounding = new boolean[128];
+    final int[] velocities = new int[128];     // of the last note on
+    long noteOns;
+    long noteOffs;
+    long redundantNoteOffs;     // note off for a note that was not sounding
+    final int[] controllers = new int[128];
+    int pitchBend = -1;
+    long controlEvents;
+
+    @Override
+    public void write(byte[] event) {
+        int status = event[0] & 0xf0;
+        int note = event[1] & 0x7f;
+        if(status == 0x90 && event[2] != 0) {
+            sounding[note] = true;
+            velocities[note] = event[2];
+            ++noteOns;
+        } else if(status == 0x80 || status == 0x90) {
+            if(!sounding[note]) ++redundantNoteOffs;
+            sounding[note] = false;
+            ++noteOffs;
+        } else if(status == 0xb0) {
+            controllers[note] = event[2];
+            ++controlEvents;
+        } else if(status == 0xe0) {
+            pitchBend = (event[1] & 0x7f) | (event[2] & 0x7f) << 7;
+            ++controlEvents;
+        }
+    }
+
+    int stuckNotes() {
+        int count = 0;
+        for(boolean s: sounding) {
+            if(s) ++count;
+        }
+        return count;
+    }
+
+    // the synth was stopped and started again, nothing is sounding
+    void restart() {
+        Arrays.fill(sounding, false);
+        Arrays.fill(controllers, 0);
+        pitchBend = -1;
+    }
+}
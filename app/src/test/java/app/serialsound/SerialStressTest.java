@@ -0,0 +1,138 @@
+package app.serialsound;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives synthetic button traffic through SerialReceiver into NoteEngine without any hardware.
+ */
+public class SerialStressTest {
+
+    private RecordingMidiSink sink;
+    private NoteEngine engine;
+    private long validReceived;
+    private long unknownReceived;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingMidiSink();
+        engine = new NoteEngine(sink);
+        validReceived = 0;
+        unknownReceived = 0;
+    }
+
+    private void registerButtons(int buttons) {
+        // the last two buttons are modifiers, the rest play a chromatic scale from C3
+        for(int b=0; b<buttons; ++b) {
+            String tag;
+            if(b == buttons - 2) {
+                tag = "sharp";
+            } else if(b == buttons - 1) {
+                tag = "sustain";
+            } else {
+                tag = String.valueOf(48 + b);
+            }
+            engine.registerCommandPair(FakeSerialPort.pressCommand(b), FakeSerialPort.releaseCommand(b), tag);
+        }
+    }
+
+    private SerialReceiver createReceiver() {
+        return new SerialReceiver(Runnable::run, new SerialReceiver.Callback() {
+            @Override
+            public void onCommand(String command, long timestamp) {
+                if(engine.getMapping().containsKey(command) || engine.getPair().containsKey(command)) {
+                    ++validReceived;
+                } else {
+                    ++unknownReceived;
+                }
+                engine.handleCommand(command, timestamp);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail(e.toString());
+            }
+        });
+    }
+
+    private double runAndReport(String name, FakeSerialPort fakePort, int steps) {
+        registerButtons(fakePort.buttons);
+        SerialReceiver receiver = createReceiver();
+        long start = System.nanoTime();
+        fakePort.run(receiver, steps);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double eventsPerSecond = validReceived / seconds;
+        double equivalentBaud = fakePort.bytesSent * 10 / seconds;
+        System.out.println(String.format(Locale.ROOT,
+                "%s: %d commands, %d garbage lines, %d bytes in %d chunks, %.3f s%n"
+                        + "  sustained %.0f events/s, %.0f baud equivalent (link utilization %.1f%%)%n"
+                        + "  %d broken lines, %d overlong lines expected%n"
+                        + "  dropped %d, misparsed %d, overlong %d, stuck notes %d, redundant note offs %d",
+                name, fakePort.commandsSent, fakePort.garbageSent, fakePort.bytesSent, fakePort.chunksSent,
+                seconds, eventsPerSecond, equivalentBaud, 100 * fakePort.linkUtilization(),
+                fakePort.unknownLines - fakePort.garbageSent, fakePort.overlongLines,
+                fakePort.commandsIntact - validReceived, unknownReceived - fakePort.unknownLines,
+                receiver.getDroppedLines(), sink.stuckNotes(), sink.redundantNoteOffs));
+        assertEquals("dropped commands", fakePort.commandsIntact, validReceived);
+        assertEquals("misparsed commands", fakePort.unknownLines, unknownReceived);
+        assertEquals("overlong lines", fakePort.overlongLines, receiver.getDroppedLines());
+        assertEquals("stuck notes", 0, sink.stuckNotes());
+        assertEquals("redundant note offs", 0, sink.redundantNoteOffs);
+        return equivalentBaud;
+    }
+
+    @Test
+    public void splitPackets_areReassembled() {
+        FakeSerialPort fakePort = new FakeSerialPort();
+        fakePort.splitRate = 1;
+        fakePort.maxPacketSize = 3;
+        fakePort.garbageRate = 0;
+        runAndReport("split packets", fakePort, 10000);
+    }
+
+    @Test
+    public void garbage_doesNotCorruptCommands() {
+        FakeSerialPort fakePort = new FakeSerialPort();
+        fakePort.garbageRate = 0.2;
+        runAndReport("garbage", fakePort, 10000);
+    }
+
+    @Test
+    public void unframedNoise_onlyDropsAffectedLines() {
+        FakeSerialPort fakePort = new FakeSerialPort();
+        fakePort.garbageRate = 0.05;
+        fakePort.noiseRate = 0.05;
+        fakePort.lostDelimiterRate = 0.02;
+        fakePort.overrunRate = 0.01;
+        runAndReport("unframed noise", fakePort, 10000);
+        assertTrue(fakePort.unknownLines > fakePort.garbageSent);
+        assertTrue(fakePort.overlongLines > 0);
+        assertTrue(fakePort.commandsIntact < fakePort.commandsSent);
+    }
+
+    @Test
+    public void denseChords_leaveNoStuckNotes() {
+        FakeSerialPort fakePort = new FakeSerialPort();
+        fakePort.buttons = 64;
+        fakePort.chordDensity = 0.9;
+        fakePort.bounceRate = 0.3;
+        fakePort.releaseRate = 0.2;
+        runAndReport("dense chords", fakePort, 20000);
+    }
+
+    @Test
+    public void sustainedThroughput_exceedsTwoMegabaud() {
+        FakeSerialPort fakePort = new FakeSerialPort();
+        fakePort.buttons = 32;
+        fakePort.pressRate = 3000;
+        fakePort.baudRate = 2000000;
+        runAndReport("warm-up", fakePort, 20000);
+        setUp();
+        double equivalentBaud = runAndReport("2 Mbaud", fakePort, 200000);
+        assertTrue("engine is slower than a 2 Mbaud link", equivalentBaud > fakePort.baudRate);
+    }
+}
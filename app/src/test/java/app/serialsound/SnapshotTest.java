@@ -0,0 +1,109 @@
+package app.serialsound;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+
+    private RecordingMidiSink sink;
+    private NoteEngine engine;
+    private NoteEngine.Snapshot snapshot;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingMidiSink();
+        engine = new NoteEngine(sink);
+        snapshot = new NoteEngine.Snapshot();
+        for(int b=0; b<100; ++b) {
+            engine.registerCommandPair(FakeSerialPort.pressCommand(b), FakeSerialPort.releaseCommand(b),
+                    String.valueOf(20 + b));
+        }
+        engine.registerCommandPair("sustain on", "sustain off", "sustain");
+        engine.registerCommandPair("sharp on", "sharp off", "sharp");
+    }
+
+    private void pause() {
+        engine.setMidiEnabled(false);
+        sink.restart();
+    }
+
+    private void resume() {
+        engine.capture(snapshot);
+        engine.setMidiEnabled(true);
+        engine.replay(snapshot);
+    }
+
+    @Test
+    public void resume_resoundsHeldAndSustainedNotes() {
+        engine.handleCommand("button 40 pressed");      // note 60
+        engine.handleCommand("sustain on");
+        engine.handleCommand("button 42 pressed");      // note 62
+        engine.handleCommand("button 42 released");
+        pause();
+        engine.handleCommand("button 40 released");
+        engine.handleCommand("sharp on");
+        engine.handleCommand("button 44 pressed");      // note 65 because of sharp
+        assertEquals(0, sink.stuckNotes());
+        resume();
+        assertEquals(3, snapshot.noteCount);
+        assertTrue(sink.sounding[60]);
+        assertTrue(sink.sounding[62]);
+        assertTrue(sink.sounding[65]);
+        engine.handleCommand("sustain off");
+        engine.handleCommand("button 44 released");
+        engine.handleCommand("sharp off");
+        assertEquals(0, sink.stuckNotes());
+        assertEquals(0, sink.redundantNoteOffs);
+    }
+
+    @Test
+    public void modifiersHeldAcrossPause_stillApply() {
+        engine.handleCommand("sharp on");
+        pause();
+        resume();
+        engine.handleCommand("button 40 pressed");      // note 61 because of sharp
+        assertTrue(sink.sounding[61]);
+        engine.handleCommand("sharp off");
+        engine.handleCommand("button 40 released");
+        assertEquals(0, sink.stuckNotes());
+    }
+
+    @Test
+    public void unusedControls_areNotReplayed() {
+        engine.replay(new NoteEngine.Snapshot());
+        assertEquals(0, sink.controlEvents);
+        pause();
+        resume();
+        assertEquals(0, sink.controlEvents);
+    }
+
+    @Test
+    public void releaseWhilePaused_leavesNothingStuck() {
+        engine.handleCommand("button 40 pressed");
+        pause();
+        engine.handleCommand("button 40 released");
+        resume();
+        assertEquals(0, snapshot.noteCount);
+        assertEquals(0, sink.stuckNotes());
+    }
+
+    @Test
+    public void resume_isFast() {
+        for(int b=0; b<100; ++b) {
+            engine.handleCommand(FakeSerialPort.pressCommand(b));
+        }
+        for(int i=0; i<1000; ++i) {      // warm-up
+            pause();
+            resume();
+        }
+        long start = System.nanoTime();
+        pause();
+        resume();
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println("pause and resume with 100 notes took " + micros + " us");
+        assertEquals(100, sink.stuckNotes());
+        assertTrue(micros < 5000);
+    }
+}
@@ -0,0 +1,126 @@
+package app.serialsound;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VelocityTest {
+
+    private static final long MS = 1000000;
+
+    private RecordingMidiSink sink;
+    private NoteEngine engine;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingMidiSink();
+        engine = new NoteEngine(sink);
+        engine.registerCommandPair("key 1 pressed", "key 1 released", "60");
+        engine.registerContact("key 1 touched", "key 1 pressed");
+        engine.registerCommandPair("button 2 pressed", "button 2 released", "62");
+    }
+
+    private int play(long contactMillis) {
+        long t = 1000 * MS;
+        engine.handleCommand("key 1 touched", t);
+        engine.handleCommand("key 1 pressed", t + contactMillis * MS);
+        engine.handleCommand("key 1 released", t + 500 * MS);
+        return sink.velocities[60];
+    }
+
+    @Test
+    public void learnedKeystroke_alreadyGetsItsVelocity() {
+        // the order MainActivity learns a dual contact key in, the press is the learned keystroke itself
+        engine.registerPressCommand("key 3 pressed", "64");
+        engine.registerContact("key 3 touched", "key 3 pressed");
+        engine.handleCommand("key 3 touched", 1000 * MS);
+        engine.handleCommand("key 3 pressed", 1030 * MS);
+        assertTrue(sink.velocities[64] > 1 && sink.velocities[64] < 127);
+    }
+
+    @Test
+    public void presets_changeTheCurve() {
+        int normal = play(30);
+        assertTrue(engine.setVelocityPreset(3));    // loud
+        int loud = play(30);
+        assertTrue(engine.setVelocityPreset(2));    // soft
+        int soft = play(30);
+        assertTrue(loud > normal && normal > soft);
+        assertFalse(engine.setVelocityPreset(NoteEngine.velocityPresetNames.length));
+        assertEquals(soft, play(30));
+        assertTrue(engine.setVelocityPreset(0));
+        assertEquals(normal, play(30));
+    }
+
+    @Test
+    public void quickerIsLouder() {
+        assertEquals(127, play(1));
+        int medium = play(20);
+        int soft = play(100);
+        assertEquals(1, play(500));
+        assertTrue(medium < 127 && medium > soft);
+        assertTrue(soft > 1);
+    }
+
+    @Test
+    public void subMillisecondDifferencesCount() {
+        engine.setVelocityCurve(0, 2000, 1.0);
+        long t = 1000 * MS;
+        engine.handleCommand("key 1 touched", t);
+        engine.handleCommand("key 1 pressed", t + 400000);     // 0.4 ms
+        int faster = sink.velocities[60];
+        engine.handleCommand("key 1 released", t + MS);
+        engine.handleCommand("key 1 touched", t + 2 * MS);
+        engine.handleCommand("key 1 pressed", t + 2 * MS + 600000);     // 0.6 ms
+        int slower = sink.velocities[60];
+        assertTrue(faster > slower);
+    }
+
+    @Test
+    public void singleContactKeys_useDefaultVelocity() {
+        engine.handleCommand("button 2 pressed", 1000 * MS);
+        assertEquals(NoteEngine.defaultVelocity, sink.velocities[62]);
+    }
+
+    @Test
+    public void missedOrStaleFirstContact_usesDefaultVelocity() {
+        engine.handleCommand("key 1 pressed", 1000 * MS);
+        assertEquals(NoteEngine.defaultVelocity, sink.velocities[60]);
+        engine.handleCommand("key 1 released", 1100 * MS);
+        engine.handleCommand("key 1 touched", 1200 * MS);
+        engine.handleCommand("key 1 pressed", 5000 * MS);
+        assertEquals(NoteEngine.defaultVelocity, sink.velocities[60]);
+    }
+
+    @Test
+    public void relearningPress_dropsItsContact() {
+        engine.registerPressCommand("key 1 pressed", "64");
+        assertFalse(engine.getContacts().containsKey("key 1 touched"));
+    }
+
+    @Test
+    public void receiver_timestampsAtEndOfLine() {
+        final long[] stamps = new long[2];
+        SerialReceiver receiver = new SerialReceiver(Runnable::run, new SerialReceiver.Callback() {
+            int n = 0;
+
+            @Override
+            public void onCommand(String command, long timestamp) {
+                stamps[n++] = timestamp;
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail(e.toString());
+            }
+        });
+        long before = System.nanoTime();
+        receiver.onNewData("key 1 touched\nkey 1 pre".getBytes());
+        long between = System.nanoTime();
+        receiver.onNewData("ssed\n".getBytes());
+        long after = System.nanoTime();
+        assertTrue(stamps[0] >= before && stamps[0] <= between);
+        assertTrue(stamps[1] >= between && stamps[1] <= after);
+    }
+}